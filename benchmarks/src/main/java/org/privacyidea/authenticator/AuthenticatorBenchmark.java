@@ -0,0 +1,122 @@
+/*
+ * Copyright 2023 NetKnights GmbH - nils.behlen@netknights.it
+ * lukas.matusiewicz@netknights.it
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.privacyidea.authenticator;
+
+import jakarta.ws.rs.core.MultivaluedHashMap;
+import jakarta.ws.rs.core.MultivaluedMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static org.privacyidea.authenticator.Const.AUTH_NOTE_AUTH_COUNTER;
+import static org.privacyidea.authenticator.Const.AUTH_NOTE_TRANSACTION_ID;
+
+/**
+ * End-to-end benchmark of authenticate() and action() against the local privacyIDEA stand-in.
+ * This includes the HTTP round-trip over loopback, so it shows the overhead of the provider on top of the network.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuthenticatorBenchmark
+{
+    private FakePrivacyIDEAServer server;
+    private PrivacyIDEAAuthenticator authenticator;
+    private AuthenticationFlowContext authenticateContext;
+    private AuthenticationFlowContext actionContext;
+    private Map<String, String> actionNotes;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        server = new FakePrivacyIDEAServer();
+        authenticator = new PrivacyIDEAAuthenticator();
+
+        Map<String, String> values = new HashMap<>();
+        values.put(Const.CONFIG_SERVER, server.url());
+        values.put(Const.CONFIG_VERIFY_SSL, "false");
+        values.put(Const.CONFIG_TRIGGER_CHALLENGE, "true");
+        values.put(Const.CONFIG_SERVICE_ACCOUNT, "service");
+        values.put(Const.CONFIG_SERVICE_PASS, "service");
+        values.put(Const.CONFIG_FORWARDED_HEADERS, "user-agent,X-Forwarded-For");
+        values.put(Const.CONFIG_EXCLUDED_GROUPS, "group-3,group-7");
+        AuthenticatorConfigModel config = Stubs.config("benchmark-config", values);
+
+        RealmModel realm = Stubs.realm("benchmark", Stubs.groups("group", 20));
+        UserModel user = Stubs.user("user", Stubs.groups("user-group", 10));
+
+        authenticateContext = Stubs.context(config, realm, user, new MultivaluedHashMap<>(), Stubs.defaultRequestHeaders(), new HashMap<>());
+
+        MultivaluedMap<String, String> formData = new MultivaluedHashMap<>();
+        formData.putSingle(Const.FORM_MODE, "otp");
+        formData.putSingle(Const.FORM_OTP, "123456");
+        formData.putSingle(Const.FORM_MODE_CHANGED, "false");
+        actionNotes = new HashMap<>();
+        actionContext = Stubs.context(config, realm, user, formData, Stubs.defaultRequestHeaders(), actionNotes);
+    }
+
+    @Setup(Level.Invocation)
+    public void resetNotes()
+    {
+        actionNotes.put(AUTH_NOTE_TRANSACTION_ID, FakePrivacyIDEAServer.TRANSACTION_ID);
+        actionNotes.put(AUTH_NOTE_AUTH_COUNTER, "0");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        authenticator.clientCache().clear();
+        server.close();
+    }
+
+    /**
+     * Trigger challenges and render the form attributes for the second step.
+     */
+    @Benchmark
+    public void authenticate()
+    {
+        authenticator.authenticate(authenticateContext);
+    }
+
+    /**
+     * Submit an OTP for the triggered transaction.
+     */
+    @Benchmark
+    public void action()
+    {
+        authenticator.action(actionContext);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2023 NetKnights GmbH - nils.behlen@netknights.it
+ * lukas.matusiewicz@netknights.it
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.privacyidea.authenticator;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Local stand-in for privacyIDEA. It answers the endpoints used by the provider with fixed responses:
+ * triggerchallenge triggers one HOTP token, validate/check and polltransaction succeed.
+ */
+final class FakePrivacyIDEAServer implements AutoCloseable
+{
+    static final String TRANSACTION_ID = "02659936574063359702";
+
+    private static final String AUTH = "{\"id\":1,\"jsonrpc\":\"2.0\",\"result\":{\"status\":true,\"value\":{\"token\":\"eyJhbGciOiJIUzI1NiJ9.e30.benchmark\"," +
+                                       "\"role\":\"admin\",\"username\":\"service\"}},\"time\":1.0,\"version\":\"privacyIDEA 3.8\",\"signature\":\"rsa_sha256_pss:\"}";
+
+    private static final String CHALLENGE = "{\"detail\":{\"message\":\"please enter otp: \",\"messages\":[\"please enter otp: \"]," +
+                                            "\"multi_challenge\":[{\"client_mode\":\"interactive\",\"message\":\"please enter otp: \"," +
+                                            "\"serial\":\"OATH00020121\",\"transaction_id\":\"" + TRANSACTION_ID + "\",\"type\":\"hotp\"}]," +
+                                            "\"serial\":\"OATH00020121\",\"threadid\":140050885818112,\"transaction_id\":\"" + TRANSACTION_ID + "\"," +
+                                            "\"transaction_ids\":[\"" + TRANSACTION_ID + "\"],\"type\":\"hotp\"},\"id\":1,\"jsonrpc\":\"2.0\"," +
+                                            "\"result\":{\"authentication\":\"CHALLENGE\",\"status\":true,\"value\":false},\"time\":1.0," +
+                                            "\"version\":\"privacyIDEA 3.8\",\"signature\":\"rsa_sha256_pss:\"}";
+
+    private static final String ACCEPT = "{\"detail\":{\"message\":\"matching 1 tokens\",\"otplen\":6,\"serial\":\"OATH00020121\",\"threadid\":1," +
+                                         "\"type\":\"hotp\"},\"id\":1,\"jsonrpc\":\"2.0\",\"result\":{\"authentication\":\"ACCEPT\",\"status\":true," +
+                                         "\"value\":true},\"time\":1.0,\"version\":\"privacyIDEA 3.8\",\"signature\":\"rsa_sha256_pss:\"}";
+
+    private static final String TOKENS = "{\"id\":1,\"jsonrpc\":\"2.0\",\"result\":{\"status\":true,\"value\":{\"count\":1,\"current\":1," +
+                                         "\"tokens\":[{\"active\":true,\"count\":1,\"description\":\"\",\"id\":1,\"serial\":\"OATH00020121\"," +
+                                         "\"tokentype\":\"hotp\",\"username\":\"user\"}]}},\"time\":1.0,\"version\":\"privacyIDEA 3.8\"," +
+                                         "\"signature\":\"rsa_sha256_pss:\"}";
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newFixedThreadPool(8);
+
+    FakePrivacyIDEAServer() throws IOException
+    {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 512);
+        server.createContext("/auth", e -> respond(e, AUTH));
+        server.createContext("/validate/triggerchallenge", e -> respond(e, CHALLENGE));
+        server.createContext("/validate/check", e -> respond(e, ACCEPT));
+        server.createContext("/validate/polltransaction", e -> respond(e, ACCEPT));
+        server.createContext("/token/", e -> respond(e, TOKENS));
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    String url()
+    {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    private static void respond(HttpExchange exchange, String body) throws IOException
+    {
+        try (InputStream in = exchange.getRequestBody())
+        {
+            in.readAllBytes();
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody())
+        {
+            out.write(bytes);
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
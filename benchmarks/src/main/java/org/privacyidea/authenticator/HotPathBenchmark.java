@@ -0,0 +1,162 @@
+/*
+ * Copyright 2023 NetKnights GmbH - nils.behlen@netknights.it
+ * lukas.matusiewicz@netknights.it
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.privacyidea.authenticator;
+
+import jakarta.ws.rs.core.MultivaluedHashMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.privacyidea.PIResponse;
+import org.privacyidea.PrivacyIDEA;
+
+/**
+ * Microbenchmarks of the parts of authenticate() and action() that do not talk to privacyIDEA.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HotPathBenchmark
+{
+    /**
+     * Number of groups the user is a member of, e.g. for users federated from LDAP
+     */
+    @Param({"5", "200"})
+    public int userGroups;
+
+    private FakePrivacyIDEAServer server;
+    private PrivacyIDEAAuthenticator authenticator;
+    private Map<String, String> configMap;
+    private AuthenticatorConfigModel configModel;
+    private Configuration configuration;
+    private Pair pair;
+    private AuthenticationFlowContext context;
+    private PIResponse challengeResponse;
+    private PIClientCache clientCache;
+    private GroupFilter cachedGroupFilter;
+    private GroupFilter uncachedGroupFilter;
+    private RealmModel realm;
+    private UserModel user;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        server = new FakePrivacyIDEAServer();
+        authenticator = new PrivacyIDEAAuthenticator();
+
+        configMap = new HashMap<>();
+        configMap.put(Const.CONFIG_SERVER, server.url());
+        configMap.put(Const.CONFIG_VERIFY_SSL, "false");
+        configMap.put(Const.CONFIG_TRIGGER_CHALLENGE, "true");
+        configMap.put(Const.CONFIG_SERVICE_ACCOUNT, "service");
+        configMap.put(Const.CONFIG_SERVICE_PASS, "service");
+        configMap.put(Const.CONFIG_FORWARDED_HEADERS, "user-agent,X-Forwarded-For,Accept-Language");
+        configMap.put(Const.CONFIG_INCLUDED_GROUPS, "group-1,group-2,group-3,group-4,group-5");
+        configMap.put(Const.CONFIG_PUSH_INTERVAL, "4,2,2,2,3");
+        configModel = Stubs.config("benchmark-config", configMap);
+        configuration = new Configuration(configMap);
+
+        PIEndpointPool pool = new PIEndpointPool(configuration, url -> PrivacyIDEA.newBuilder(url, "benchmark")
+                                                                                  .sslVerify(false)
+                                                                                  .serviceAccount("service", "service")
+                                                                                  .build());
+        pair = new Pair(pool, configuration);
+        challengeResponse = pool.primary().triggerChallenges("user", new HashMap<>());
+
+        // The realm has many groups, the user is in userGroups of them and in one of the included groups at the end
+        List<GroupModel> realmGroups = Stubs.groups("group", 500);
+        List<GroupModel> memberOf = new ArrayList<>(realmGroups.subList(100, 100 + userGroups - 1));
+        memberOf.add(realmGroups.get(5));
+        realm = Stubs.realm("benchmark", realmGroups);
+        user = Stubs.user("user", memberOf);
+
+        context = Stubs.context(configModel, realm, user, new MultivaluedHashMap<>(), Stubs.defaultRequestHeaders(),
+                                new HashMap<>());
+
+        clientCache = new PIClientCache();
+        clientCache.get(configModel.getId(), realm.getId(), configMap, () -> pair);
+
+        cachedGroupFilter = new GroupFilter();
+        uncachedGroupFilter = new GroupFilter();
+        uncachedGroupFilter.configure(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+    {
+        pair.pool().close();
+        server.close();
+    }
+
+    @Benchmark
+    public Configuration configurationConstruction()
+    {
+        return new Configuration(configMap);
+    }
+
+    @Benchmark
+    public Pair clientCacheHit()
+    {
+        return clientCache.get(configModel.getId(), realm.getId(), configMap, () -> pair);
+    }
+
+    @Benchmark
+    public Map<String, String> headersToForward()
+    {
+        return authenticator.getHeadersToForward(context, configuration);
+    }
+
+    @Benchmark
+    public void extractChallengeDataToForm()
+    {
+        authenticator.extractChallengeDataToForm(challengeResponse, context, pair, FormModel.defaults("en"));
+    }
+
+    @Benchmark
+    public boolean groupFilterCached()
+    {
+        return cachedGroupFilter.skip(configModel.getId(), configuration, realm, user);
+    }
+
+    @Benchmark
+    public boolean groupFilterUncached()
+    {
+        return uncachedGroupFilter.skip(configModel.getId(), configuration, realm, user);
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2023 NetKnights GmbH - nils.behlen@netknights.it
+ * lukas.matusiewicz@netknights.it
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.privacyidea.authenticator;
+
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MultivaluedHashMap;
+import jakarta.ws.rs.core.MultivaluedMap;
+import java.lang.reflect.Array;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.forms.login.LoginFormsProvider;
+import org.keycloak.http.HttpRequest;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.keycloak.sessions.RootAuthenticationSessionModel;
+
+/**
+ * Minimal stand-ins for the keycloak objects the authenticator touches. They are dynamic proxies, so only the methods
+ * that are used have to be implemented. All other methods return null, false or 0.
+ */
+final class Stubs
+{
+    private Stubs()
+    {
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T stub(Class<T> type, Map<String, Function<Object[], Object>> methods)
+    {
+        return (T) Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) ->
+        {
+            Function<Object[], Object> impl = methods.get(method.getName());
+            if (impl != null)
+            {
+                return impl.apply(args);
+            }
+            switch (method.getName())
+            {
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return type.getSimpleName() + "Stub";
+            }
+            Class<?> r = method.getReturnType();
+            if (r.isPrimitive() && r != void.class)
+            {
+                // The default of an array element is the zero of the right type
+                return Array.get(Array.newInstance(r, 1), 0);
+            }
+            // Builder style methods return the proxy itself
+            if (r.isInstance(proxy))
+            {
+                return proxy;
+            }
+            return null;
+        });
+    }
+
+    static GroupModel group(String id, String name)
+    {
+        Map<String, Function<Object[], Object>> m = new HashMap<>();
+        m.put("getId", a -> id);
+        m.put("getName", a -> name);
+        m.put("getSubGroupsStream", a -> java.util.stream.Stream.empty());
+        return stub(GroupModel.class, m);
+    }
+
+    static RealmModel realm(String name, List<GroupModel> groups)
+    {
+        Map<String, Function<Object[], Object>> m = new HashMap<>();
+        m.put("getId", a -> name + "-id");
+        m.put("getName", a -> name);
+        m.put("getGroupsStream", a -> groups.stream());
+        return stub(RealmModel.class, m);
+    }
+
+    static UserModel user(String name, List<GroupModel> groups)
+    {
+        Map<String, Function<Object[], Object>> m = new HashMap<>();
+        m.put("getId", a -> name + "-id");
+        m.put("getUsername", a -> name);
+        m.put("getGroupsStream", a -> groups.stream());
+        return stub(UserModel.class, m);
+    }
+
+    static HttpHeaders headers(MultivaluedMap<String, String> values)
+    {
+        Map<String, Function<Object[], Object>> m = new HashMap<>();
+        m.put("getRequestHeaders", a -> values);
+        m.put("getRequestHeader", a -> values.get(((String) a[0]).toLowerCase()));
+        return stub(HttpHeaders.class, m);
+    }
+
+    static MultivaluedMap<String, String> defaultRequestHeaders()
+    {
+        MultivaluedMap<String, String> values = new MultivaluedHashMap<>();
+        values.add("accept-language", "en-US,en;q=0.9");
+        values.add("user-agent", "Mozilla/5.0 (X11; Linux x86_64) Benchmark");
+        values.add("x-forwarded-for", "192.0.2.10");
+        return values;
+    }
+
+    /**
+     * Build an AuthenticationFlowContext for the given config, user and submitted form.
+     */
+    static AuthenticationFlowContext context(AuthenticatorConfigModel config, RealmModel realm, UserModel user,
+                                             MultivaluedMap<String, String> formData, MultivaluedMap<String, String> requestHeaders,
+                                             Map<String, String> authNotes)
+    {
+        HttpHeaders headers = headers(requestHeaders);
+
+        Map<String, Function<Object[], Object>> kcContext = new HashMap<>();
+        kcContext.put("getRequestHeaders", a -> headers);
+        kcContext.put("getRealm", a -> realm);
+        KeycloakContext keycloakContext = stub(KeycloakContext.class, kcContext);
+
+        Map<String, Function<Object[], Object>> session = new HashMap<>();
+        session.put("getContext", a -> keycloakContext);
+        KeycloakSession keycloakSession = stub(KeycloakSession.class, session);
+
+        Map<String, Function<Object[], Object>> request = new HashMap<>();
+        request.put("getDecodedFormParameters", a -> formData);
+        request.put("getHttpHeaders", a -> headers);
+        HttpRequest httpRequest = stub(HttpRequest.class, request);
+
+        Map<String, Function<Object[], Object>> rootSession = new HashMap<>();
+        rootSession.put("getId", a -> "benchmark-session");
+        RootAuthenticationSessionModel rootAuthenticationSession = stub(RootAuthenticationSessionModel.class, rootSession);
+
+        Map<String, Function<Object[], Object>> authSession = new HashMap<>();
+        authSession.put("getParentSession", a -> rootAuthenticationSession);
+        authSession.put("getTabId", a -> "benchmark-tab");
+        authSession.put("getAuthNote", a -> authNotes.get((String) a[0]));
+        authSession.put("setAuthNote", a -> authNotes.put((String) a[0], (String) a[1]));
+        authSession.put("removeAuthNote", a -> authNotes.remove((String) a[0]));
+        AuthenticationSessionModel authenticationSession = stub(AuthenticationSessionModel.class, authSession);
+
+        // The form only collects the attributes, createForm returns null because rendering is not part of the provider
+        Map<String, Object> attributes = new HashMap<>();
+        Map<String, Function<Object[], Object>> formMethods = new HashMap<>();
+        LoginFormsProvider[] form = new LoginFormsProvider[1];
+        formMethods.put("setAttribute", a ->
+        {
+            attributes.put((String) a[0], a[1]);
+            return form[0];
+        });
+        form[0] = stub(LoginFormsProvider.class, formMethods);
+
+        Map<String, Function<Object[], Object>> ctx = new HashMap<>();
+        ctx.put("getAuthenticatorConfig", a -> config);
+        ctx.put("getRealm", a -> realm);
+        ctx.put("getUser", a -> user);
+        ctx.put("getSession", a -> keycloakSession);
+        ctx.put("getHttpRequest", a -> httpRequest);
+        ctx.put("getAuthenticationSession", a -> authenticationSession);
+        ctx.put("form", a -> form[0]);
+        return stub(AuthenticationFlowContext.class, ctx);
+    }
+
+    static AuthenticatorConfigModel config(String id, Map<String, String> values)
+    {
+        AuthenticatorConfigModel config = new AuthenticatorConfigModel();
+        config.setId(id);
+        config.setAlias(id);
+        config.setConfig(values);
+        return config;
+    }
+
+    static List<GroupModel> groups(String prefix, int count)
+    {
+        List<GroupModel> groups = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+        {
+            groups.add(group(prefix + "-id-" + i, prefix + "-" + i));
+        }
+        return groups;
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2023 NetKnights GmbH - nils.behlen@netknights.it
+ * lukas.matusiewicz@netknights.it
+ * - Modified
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.privacyidea.authenticator;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import org.jboss.logging.Logger;
+import org.keycloak.util.JsonSerialization;
+import org.privacyidea.PIError;
+
+import static org.privacyidea.authenticator.Const.AUDIT_FLUSH_MILLIS;
+import static org.privacyidea.authenticator.Const.AUDIT_LOGGER;
+import static org.privacyidea.authenticator.Const.DEFAULT_AUDIT_BUFFER_SIZE;
+
+/**
+ * Audit events of the MFA decisions, written as one JSON object per line to the log category org.privacyidea.audit. The
+ * login thread only puts the event into a bounded ring buffer and never waits: if the buffer is full, the event is dropped
+ * and counted. A background thread takes the events from the buffer and writes them. Successful decisions are the bulk of
+ * the events, they can be sampled together with the polls of pending push transactions; failures are always written.
+ */
+final class AuditLog
+{
+    static final String TYPE_TRIGGER = "trigger";
+    static final String TYPE_VALIDATE = "validate";
+    static final String TYPE_PUSH = "push";
+    static final String TYPE_ENROLL = "enroll";
+    static final String TYPE_SKIP = "skip";
+    static final String RESULT_SUCCESS = "success";
+    static final String RESULT_PENDING = "pending";
+
+    private final Logger logger = Logger.getLogger(AuditLog.class);
+    private final Logger audit = Logger.getLogger(AUDIT_LOGGER);
+
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean enabled;
+    private volatile int successSamplePercent = 100;
+    private volatile Buffer buffer;
+    private Thread writer;
+
+    private static final class Event
+    {
+        private final long timestamp = System.currentTimeMillis();
+        private final String type;
+        private final String result;
+        private final String realm;
+        private final String user;
+        private final String tokenType;
+        private final String transactionId;
+        private final PIError error;
+
+        private Event(String type, String result, String realm, String user, String tokenType, String transactionId, PIError error)
+        {
+            this.type = type;
+            this.result = result;
+            this.realm = realm;
+            this.user = user;
+            this.tokenType = tokenType;
+            this.transactionId = transactionId;
+            this.error = error;
+        }
+
+        private Map<String, Object> toMap()
+        {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("time", Instant.ofEpochMilli(timestamp).toString());
+            map.put("type", type);
+            map.put("result", result);
+            map.put("realm", realm);
+            map.put("user", user);
+            if (tokenType != null)
+            {
+                map.put("tokenType", tokenType);
+            }
+            if (transactionId != null && !transactionId.isEmpty())
+            {
+                map.put("transactionId", transactionId);
+            }
+            if (error != null)
+            {
+                map.put("errorCode", error.code);
+                map.put("errorMessage", error.message);
+            }
+            return map;
+        }
+    }
+
+    /**
+     * Ring buffer with many producers and one consumer. A producer claims a sequence number with a CAS on the head and then
+     * publishes the event into its slot. The consumer empties the slot before it advances the tail, so a producer never
+     * overwrites an event that has not been written.
+     */
+    private static final class Buffer
+    {
+        private final AtomicReferenceArray<Event> slots;
+        private final int mask;
+        private final AtomicLong head = new AtomicLong();
+        private volatile long tail;
+
+        private Buffer(int capacity)
+        {
+            int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+            this.slots = new AtomicReferenceArray<>(size);
+            this.mask = size - 1;
+        }
+
+        private boolean offer(Event event)
+        {
+            long seq;
+            do
+            {
+                seq = head.get();
+                if (seq - tail >= slots.length())
+                {
+                    return false;
+                }
+            }
+            while (!head.compareAndSet(seq, seq + 1));
+            slots.lazySet((int) (seq & mask), event);
+            return true;
+        }
+
+        private Event poll()
+        {
+            int index = (int) (tail & mask);
+            Event event = slots.get(index);
+            if (event != null)
+            {
+                slots.set(index, null);
+                tail = tail + 1;
+            }
+            return event;
+        }
+    }
+
+    /**
+     * Enable or disable the audit log. Enabling starts the writer thread.
+     *
+     * @param enabled              whether events are recorded
+     * @param bufferSize           number of events that can wait for the writer, rounded up to a power of two
+     * @param successSamplePercent share of the successful and pending decisions that are recorded, 0 to 100
+     */
+    synchronized void configure(boolean enabled, int bufferSize, int successSamplePercent)
+    {
+        this.successSamplePercent = Math.max(0, Math.min(100, successSamplePercent));
+        if (enabled && writer == null)
+        {
+            buffer = new Buffer(bufferSize > 0 ? bufferSize : DEFAULT_AUDIT_BUFFER_SIZE);
+            writer = new Thread(this::drain, "privacyidea-audit");
+            writer.setDaemon(true);
+            writer.start();
+        }
+        this.enabled = enabled;
+    }
+
+    /**
+     * Record a decision. Returns immediately.
+     *
+     * @param type          one of the TYPE constants
+     * @param result        outcome of the decision, e.g. success, challenge, rejected or error
+     * @param realm         name of the keycloak realm
+     * @param user          name of the user
+     * @param tokenType     token type the user answered with, null if it does not apply
+     * @param transactionId transaction of privacyIDEA, null if there is none
+     * @param error         error returned by privacyIDEA, null if there is none
+     */
+    void record(String type, String result, String realm, String user, String tokenType, String transactionId, PIError error)
+    {
+        if (!enabled)
+        {
+            return;
+        }
+        int percent = successSamplePercent;
+        if ((RESULT_SUCCESS.equals(result) || RESULT_PENDING.equals(result)) && percent < 100 && ThreadLocalRandom.current().nextInt(100) >= percent)
+        {
+            return;
+        }
+        Buffer current = buffer;
+        if (current != null && !current.offer(new Event(type, result, realm, user, tokenType, transactionId, error)))
+        {
+            dropped.incrementAndGet();
+        }
+    }
+
+    synchronized void shutdown()
+    {
+        enabled = false;
+        if (writer != null)
+        {
+            writer.interrupt();
+            writer = null;
+        }
+    }
+
+    private void drain()
+    {
+        Buffer current = buffer;
+        while (!Thread.currentThread().isInterrupted())
+        {
+            Event event;
+            boolean wrote = false;
+            while ((event = current.poll()) != null)
+            {
+                write(event);
+                wrote = true;
+            }
+            long lost = dropped.getAndSet(0);
+            if (lost > 0)
+            {
+                logger.warn("The audit log buffer was full, " + lost + " events were dropped.");
+            }
+            if (!wrote)
+            {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(AUDIT_FLUSH_MILLIS));
+            }
+        }
+        // Write what is left after the shutdown
+        Event event;
+        while ((event = current.poll()) != null)
+        {
+            write(event);
+        }
+    }
+
+    private void write(Event event)
+    {
+        try
+        {
+            audit.info(JsonSerialization.writeValueAsString(event.toMap()));
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to write audit event: " + e.getMessage());
+        }
+    }
+}
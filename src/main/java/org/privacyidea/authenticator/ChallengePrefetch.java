@@ -0,0 +1,191 @@
+/*
+ * Copyright 2023 NetKnights GmbH - nils.behlen@netknights.it
+ * lukas.matusiewicz@netknights.it
+ * - Modified
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.privacyidea.authenticator;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import org.jboss.logging.Logger;
+import org.keycloak.authentication.AuthenticationFlowError;
+import org.keycloak.authentication.AuthenticationFlowException;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.privacyidea.PIResponse;
+
+import static org.privacyidea.authenticator.Const.AUTH_NOTE_PREFETCHED;
+import static org.privacyidea.authenticator.Const.PREFETCH_LIFESPAN_SECONDS;
+import static org.privacyidea.authenticator.Const.PREFETCH_MAX_SIZE;
+
+/**
+ * Challenges that were triggered by the prefetch authenticator before the privacyIDEA authenticator is reached. The
+ * pending request is kept per authentication session of this node, the authenticator takes it instead of triggering the
+ * challenges again.
+ * <p>
+ * The authentication session also gets a note once the request has been started. If the request may have reached
+ * privacyIDEA but its response cannot be used, because the login continues on another node, the entry was dropped or the
+ * configuration changed, the authenticator does not trigger the challenges again, as that would send a second SMS or email.
+ * A request that failed or returned no response has not sent anything, then the challenges are triggered as usual.
+ */
+final class ChallengePrefetch
+{
+    private final Logger logger = Logger.getLogger(ChallengePrefetch.class);
+
+    private final ConcurrentHashMap<String, Prefetch> prefetches = new ConcurrentHashMap<>();
+
+    private static final class Prefetch
+    {
+        private final Configuration config;
+        private final String username;
+        private final CompletableFuture<PIResponse> response;
+        private final long expires;
+
+        private Prefetch(Configuration config, String username, CompletableFuture<PIResponse> response, long expires)
+        {
+            this.config = config;
+            this.username = username;
+            this.response = response;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * What the authenticator gets from {@link #take}.
+     */
+    static final class Taken
+    {
+        private static final Taken NONE = new Taken(null, true);
+        private static final Taken UNAVAILABLE = new Taken(null, false);
+
+        private final PIResponse response;
+        private final boolean trigger;
+
+        private Taken(PIResponse response, boolean trigger)
+        {
+            this.response = response;
+            this.trigger = trigger;
+        }
+
+        /**
+         * @return the prefetched response, null if there is none
+         */
+        PIResponse response()
+        {
+            return response;
+        }
+
+        /**
+         * @return true if the authenticator has to trigger the challenges itself, false if they were triggered already
+         */
+        boolean trigger()
+        {
+            return trigger;
+        }
+    }
+
+    /**
+     * Start the trigger request and remember it for the authentication session. Nothing is started if too many prefetches
+     * are pending, the authenticator then triggers the challenges itself.
+     *
+     * @param session  current authentication session
+     * @param config   configuration the challenges are triggered with
+     * @param username user the challenges are triggered for
+     * @param request  starts the request
+     */
+    void start(AuthenticationSessionModel session, Configuration config, String username,
+               Supplier<CompletableFuture<PIResponse>> request)
+    {
+        long now = System.currentTimeMillis();
+        if (prefetches.size() >= PREFETCH_MAX_SIZE)
+        {
+            prefetches.values().removeIf(p -> p.expires <= now);
+            if (prefetches.size() >= PREFETCH_MAX_SIZE)
+            {
+                // The challenges are triggered by the authenticator
+                return;
+            }
+        }
+        prefetches.put(key(session), new Prefetch(config, username, request.get(),
+                                                  now + TimeUnit.SECONDS.toMillis(PREFETCH_LIFESPAN_SECONDS)));
+        session.setAuthNote(AUTH_NOTE_PREFETCHED, username);
+    }
+
+    /**
+     * Take the prefetched response of the authentication session and wait for it if it is still pending. A response that
+     * arrived is used even after the prefetch expired, its transaction is still the one the user got.
+     *
+     * @param session       current authentication session
+     * @param config        current configuration, the response is only used if it was made with the same
+     * @param username      current user
+     * @param timeoutMillis maximum time to wait for the pending request
+     * @return the response, or whether the challenges have to be triggered
+     * @throws AuthenticationFlowException with INTERNAL_ERROR if the pending request did not finish in time
+     */
+    Taken take(AuthenticationSessionModel session, Configuration config, String username, long timeoutMillis)
+    {
+        String prefetchedUser = session.getAuthNote(AUTH_NOTE_PREFETCHED);
+        session.removeAuthNote(AUTH_NOTE_PREFETCHED);
+        Prefetch prefetch = prefetches.remove(key(session));
+        if (prefetch == null || !prefetch.username.equals(username))
+        {
+            // Started on another node or dropped, it may have reached privacyIDEA
+            return username.equals(prefetchedUser) ? Taken.UNAVAILABLE : Taken.NONE;
+        }
+        PIResponse response;
+        try
+        {
+            response = prefetch.response.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            // Triggering again would send a second SMS or email
+            String message = "privacyIDEA did not answer the prefetched validate/triggerchallenge within " + timeoutMillis + "ms";
+            logger.error(message);
+            throw new AuthenticationFlowException(message, e, AuthenticationFlowError.INTERNAL_ERROR);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new AuthenticationFlowException("Interrupted while waiting for validate/triggerchallenge", e,
+                                                  AuthenticationFlowError.INTERNAL_ERROR);
+        }
+        catch (ExecutionException e)
+        {
+            logger.warn("Prefetching the challenges failed, triggering them again: " + e.getCause());
+            return Taken.NONE;
+        }
+        if (response == null)
+        {
+            // The client returns null if the request failed
+            return Taken.NONE;
+        }
+        // With a changed configuration, the challenges were still sent
+        return prefetch.config == config ? new Taken(response, false) : Taken.UNAVAILABLE;
+    }
+
+    void clear()
+    {
+        prefetches.clear();
+    }
+
+    private static String key(AuthenticationSessionModel session)
+    {
+        return session.getParentSession().getId() + '.' + session.getTabId();
+    }
+}
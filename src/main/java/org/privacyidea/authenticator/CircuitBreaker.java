@@ -0,0 +1,188 @@
+/*
+ * Copyright 2023 NetKnights GmbH - nils.behlen@netknights.it
+ * lukas.matusiewicz@netknights.it
+ * - Modified
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.privacyidea.authenticator;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.jboss.logging.Logger;
+
+import static org.privacyidea.authenticator.Const.CIRCUIT_MIN_CALLS;
+import static org.privacyidea.authenticator.Const.CIRCUIT_WINDOW_SECONDS;
+
+/**
+ * Circuit breaker for one privacyIDEA server. Calls that fail or take longer than the slow call time are counted in a
+ * rolling window of one second buckets. When their share reaches the failure rate, the circuit opens and calls are
+ * rejected without waiting for the server. After the open time, a single probe call is let through: if it succeeds the
+ * circuit closes, otherwise it opens again.
+ */
+final class CircuitBreaker
+{
+    private final Logger logger = Logger.getLogger(CircuitBreaker.class);
+
+    enum State
+    {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Thrown instead of calling privacyIDEA while the circuit is open.
+     */
+    static final class OpenException extends RuntimeException
+    {
+        OpenException(String server)
+        {
+            super("privacyIDEA server " + server + " is unavailable, the circuit breaker is open", null, false, false);
+        }
+    }
+
+    private final String server;
+    private final long[] bucketSecond = new long[CIRCUIT_WINDOW_SECONDS];
+    private final int[] calls = new int[CIRCUIT_WINDOW_SECONDS];
+    private final int[] failures = new int[CIRCUIT_WINDOW_SECONDS];
+    private State state = State.CLOSED;
+    private long openUntil;
+    private boolean probeInFlight;
+    private long probeStarted;
+
+    CircuitBreaker(String server)
+    {
+        this.server = server;
+    }
+
+    /**
+     * Check if a call may be made. In the half-open state, only one probe call is allowed at a time. A probe that did not
+     * report back within the open time, e.g. because it was cancelled before it started, is replaced by a new one.
+     *
+     * @param config configuration with the open time
+     * @param now    current time in milliseconds
+     * @return true if the call may be made, in which case {@link #record} has to be called when it is done
+     */
+    synchronized boolean tryAcquire(Configuration config, long now)
+    {
+        switch (state)
+        {
+            case OPEN:
+                if (now < openUntil)
+                {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                probeInFlight = true;
+                probeStarted = now;
+                return true;
+            case HALF_OPEN:
+                if (probeInFlight && now - probeStarted < TimeUnit.SECONDS.toMillis(config.circuitOpenSeconds()))
+                {
+                    return false;
+                }
+                probeInFlight = true;
+                probeStarted = now;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Record the result of a call that was allowed by {@link #tryAcquire}.
+     *
+     * @param config         configuration with the thresholds
+     * @param now            current time in milliseconds
+     * @param durationMillis duration of the call
+     * @param failed         true if the call failed
+     */
+    synchronized void record(Configuration config, long now, long durationMillis, boolean failed)
+    {
+        boolean bad = failed || durationMillis >= config.circuitSlowCall();
+        if (state == State.HALF_OPEN)
+        {
+            probeInFlight = false;
+            if (bad)
+            {
+                open(config, now);
+            }
+            else
+            {
+                logger.info("privacyIDEA server " + server + " is available again, closing the circuit.");
+                state = State.CLOSED;
+                Arrays.fill(calls, 0);
+                Arrays.fill(failures, 0);
+            }
+            return;
+        }
+        if (state == State.OPEN)
+        {
+            // Calls that started before the circuit opened do not change the state
+            return;
+        }
+
+        long second = TimeUnit.MILLISECONDS.toSeconds(now);
+        int i = (int) (second % CIRCUIT_WINDOW_SECONDS);
+        if (bucketSecond[i] != second)
+        {
+            bucketSecond[i] = second;
+            calls[i] = 0;
+            failures[i] = 0;
+        }
+        calls[i]++;
+        if (!bad)
+        {
+            return;
+        }
+        failures[i]++;
+
+        int windowCalls = 0;
+        int windowFailures = 0;
+        for (int j = 0; j < CIRCUIT_WINDOW_SECONDS; j++)
+        {
+            if (second - bucketSecond[j] < CIRCUIT_WINDOW_SECONDS)
+            {
+                windowCalls += calls[j];
+                windowFailures += failures[j];
+            }
+        }
+        if (windowCalls >= CIRCUIT_MIN_CALLS && windowFailures * 100 >= config.circuitFailureRate() * windowCalls)
+        {
+            open(config, now);
+        }
+    }
+
+    /**
+     * Give back a call that was allowed by {@link #tryAcquire} but whose result cannot be told, so that it does not count.
+     * If it was the probe of the half-open state, the next call probes instead.
+     */
+    synchronized void skip()
+    {
+        if (state == State.HALF_OPEN)
+        {
+            probeInFlight = false;
+        }
+    }
+
+    private void open(Configuration config, long now)
+    {
+        logger.warn("privacyIDEA server " + server + " is failing or slow, opening the circuit for " + config.circuitOpenSeconds() + " seconds.");
+        state = State.OPEN;
+        openUntil = now + TimeUnit.SECONDS.toMillis(config.circuitOpenSeconds());
+    }
+
+    synchronized State state()
+    {
+        return state;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2023 NetKnights GmbH - nils.behlen@netknights.it
+ * lukas.matusiewicz@netknights.it
+ * - Modified
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.privacyidea.authenticator;
+
+import java.util.function.Supplier;
+import org.jboss.logging.Logger;
+import org.privacyidea.IPILogger;
+
+/**
+ * Logger of the privacyIDEA clients and of the authenticator for one configuration. The setting is fixed per instance,
+ * so each client logs according to the configuration it was built for, regardless of the logins that run at the same time
+ * in other realms. Messages of the authenticator are passed as suppliers and only built if logging is enabled.
+ */
+final class ClientLogger implements IPILogger
+{
+    private static final Logger logger = Logger.getLogger(PrivacyIDEAAuthenticator.class);
+    private static final ClientLogger ENABLED = new ClientLogger(true);
+    private static final ClientLogger DISABLED = new ClientLogger(false);
+
+    private final boolean enabled;
+
+    private ClientLogger(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param config configuration of the execution
+     * @return the logger for the log setting of the configuration
+     */
+    static ClientLogger of(Configuration config)
+    {
+        return config.doLog() ? ENABLED : DISABLED;
+    }
+
+    boolean enabled()
+    {
+        return enabled;
+    }
+
+    void log(Supplier<String> message)
+    {
+        if (enabled)
+        {
+            logger.info("PrivacyIDEA Client: " + message.get());
+        }
+    }
+
+    void error(Supplier<String> message)
+    {
+        if (enabled)
+        {
+            logger.error("PrivacyIDEA Client: " + message.get());
+        }
+    }
+
+    // IPILogger implementation
+    @Override
+    public void log(String message)
+    {
+        if (enabled)
+        {
+            logger.info("PrivacyIDEA Client: " + message);
+        }
+    }
+
+    @Override
+    public void error(String message)
+    {
+        if (enabled)
+        {
+            logger.error("PrivacyIDEA Client: " + message);
+        }
+    }
+
+    @Override
+    public void log(Throwable t)
+    {
+        if (enabled)
+        {
+            logger.info("PrivacyIDEA Client: ", t);
+        }
+    }
+
+    @Override
+    public void error(Throwable t)
+    {
+        if (enabled)
+        {
+            logger.error("PrivacyIDEA Client: ", t);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2023 NetKnights GmbH - nils.behlen@netknights.it
+ * lukas.matusiewicz@netknights.it
+ * - Modified
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.privacyidea.authenticator;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakSessionTaskWithResult;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * The state of the push transactions in keycloak's single-use object store, which is a replicated Infinispan cache in a
+ * cluster. Every node can look up a transaction registered by another node, answer with its result and take over polling
+ * it. A node claims the polling of a transaction for a lease of several intervals, so privacyIDEA is polled by one node at a
+ * time, and the other nodes only read the state. All values are strings, the entries expire with the lifespan of the
+ * transaction.
+ * <p>
+ * Calls made while handling a request pass its session and run in its transaction. Only the background poller, which has
+ * no session, opens one per call.
+ */
+final class ClusterTransactionStore
+{
+    private static final String KEY_PREFIX = "privacyidea.push.";
+    private static final String CLAIM_PREFIX = "privacyidea.push.claim.";
+
+    static final String REALM = "realm";
+    static final String CONFIG = "config";
+    static final String USER = "user";
+    static final String TOKEN_TYPES = "types";
+    static final String STATE = "state";
+    static final String CREATED = "created";
+    static final String LAST_POLL = "lastPoll";
+    static final String STATE_PENDING = "pending";
+    static final String STATE_CONFIRMED = "confirmed";
+
+    private final Logger logger = Logger.getLogger(ClusterTransactionStore.class);
+
+    private volatile KeycloakSessionFactory sessionFactory;
+
+    /**
+     * Enable the store. Without a session factory, all methods do nothing and every node works on its own.
+     */
+    void init(KeycloakSessionFactory sessionFactory)
+    {
+        this.sessionFactory = sessionFactory;
+    }
+
+    void disable()
+    {
+        this.sessionFactory = null;
+    }
+
+    /**
+     * Store a new pending transaction.
+     *
+     * @param session         session of the current request
+     * @param transactionID   transaction id returned by privacyIDEA
+     * @param realmId         id of the keycloak realm
+     * @param configId        id of the AuthenticatorConfigModel, to load the configuration on another node
+     * @param username        user the transaction belongs to
+     * @param tokenTypes      token types that were triggered
+     * @param created         creation time in milliseconds
+     * @param lifespanSeconds time after which the entry expires
+     */
+    void put(KeycloakSession session, String transactionID, String realmId, String configId, String username, List<String> tokenTypes, long created,
+             long lifespanSeconds)
+    {
+        Map<String, String> state = new HashMap<>();
+        state.put(REALM, realmId);
+        state.put(CONFIG, configId);
+        state.put(USER, username);
+        state.put(TOKEN_TYPES, tokenTypes == null ? "" : String.join(",", tokenTypes));
+        state.put(STATE, STATE_PENDING);
+        state.put(CREATED, Long.toString(created));
+        run(session, s ->
+        {
+            s.singleUseObjects().put(KEY_PREFIX + transactionID, lifespanSeconds, state);
+            return null;
+        });
+    }
+
+    /**
+     * @param session session of the current request, null to open one
+     * @return the state of the transaction, null if it is unknown, expired or the store is disabled
+     */
+    Map<String, String> get(KeycloakSession session, String transactionID)
+    {
+        return run(session, s -> s.singleUseObjects().get(KEY_PREFIX + transactionID));
+    }
+
+    /**
+     * Mark the transaction as confirmed, so that the other nodes do not poll it anymore.
+     */
+    void confirm(String transactionID)
+    {
+        run(null, s ->
+        {
+            Map<String, String> current = s.singleUseObjects().get(KEY_PREFIX + transactionID);
+            if (current != null)
+            {
+                Map<String, String> state = new HashMap<>(current);
+                state.put(STATE, STATE_CONFIRMED);
+                state.put(LAST_POLL, Long.toString(System.currentTimeMillis()));
+                s.singleUseObjects().replace(KEY_PREFIX + transactionID, state);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Claim the polling of the transaction for a lease.
+     *
+     * @param transactionID transaction to poll
+     * @param seconds       length of the lease, the claim expires after it
+     * @return true if this node may poll, false if another node has claimed it
+     */
+    boolean claim(String transactionID, long seconds)
+    {
+        Boolean claimed = run(null, s -> s.singleUseObjects().putIfAbsent(CLAIM_PREFIX + transactionID, Math.max(1, seconds)));
+        return claimed == null || claimed;
+    }
+
+    /**
+     * @param session session of the current request
+     */
+    void remove(KeycloakSession session, String transactionID)
+    {
+        run(session, s ->
+        {
+            s.singleUseObjects().remove(KEY_PREFIX + transactionID);
+            return null;
+        });
+    }
+
+    /**
+     * Run the task in the session of the current request, or in a new session and transaction if there is none.
+     */
+    private <T> T run(KeycloakSession session, KeycloakSessionTaskWithResult<T> task)
+    {
+        KeycloakSessionFactory factory = sessionFactory;
+        if (factory == null)
+        {
+            return null;
+        }
+        try
+        {
+            return session != null ? task.run(session) : KeycloakModelUtils.runJobInTransactionWithResult(factory, task);
+        }
+        catch (RuntimeException e)
+        {
+            // The node carries on with its local state
+            logger.warn("Failed to access the cluster state of the push transactions: " + e.getMessage());
+            return null;
+        }
+    }
+}
@@ -18,17 +18,31 @@
 package org.privacyidea.authenticator;
 
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import static org.privacyidea.PIConstants.TOKEN_TYPE_OTP;
+import static org.privacyidea.authenticator.Const.CONFIG_ADAPTIVE_POLLING;
+import static org.privacyidea.authenticator.Const.CONFIG_ASYNC_CALLS;
+import static org.privacyidea.authenticator.Const.CONFIG_CALL_TIMEOUT;
+import static org.privacyidea.authenticator.Const.CONFIG_CIRCUIT_BREAKER;
+import static org.privacyidea.authenticator.Const.CONFIG_CIRCUIT_FAILURE_RATE;
+import static org.privacyidea.authenticator.Const.CONFIG_CIRCUIT_OPEN_POLICY;
+import static org.privacyidea.authenticator.Const.CONFIG_CIRCUIT_OPEN_SECONDS;
+import static org.privacyidea.authenticator.Const.CONFIG_CIRCUIT_SKIP_GROUPS;
+import static org.privacyidea.authenticator.Const.CONFIG_CIRCUIT_SLOW_CALL;
 import static org.privacyidea.authenticator.Const.CONFIG_DEFAULT_MESSAGE;
 import static org.privacyidea.authenticator.Const.CONFIG_ENABLE_LOG;
 import static org.privacyidea.authenticator.Const.CONFIG_ENROLL_TOKEN;
 import static org.privacyidea.authenticator.Const.CONFIG_ENROLL_TOKEN_TYPE;
 import static org.privacyidea.authenticator.Const.CONFIG_EXCLUDED_GROUPS;
 import static org.privacyidea.authenticator.Const.CONFIG_FORWARDED_HEADERS;
+import static org.privacyidea.authenticator.Const.CONFIG_HEDGE_PERCENTILE;
+import static org.privacyidea.authenticator.Const.CONFIG_HEDGING;
 import static org.privacyidea.authenticator.Const.CONFIG_INCLUDED_GROUPS;
 import static org.privacyidea.authenticator.Const.CONFIG_POLL_IN_BROWSER;
 import static org.privacyidea.authenticator.Const.CONFIG_POLL_IN_BROWSER_URL;
@@ -42,13 +56,22 @@ import static org.privacyidea.authenticator.Const.CONFIG_SERVICE_PASS;
 import static org.privacyidea.authenticator.Const.CONFIG_SERVICE_REALM;
 import static org.privacyidea.authenticator.Const.CONFIG_TRIGGER_CHALLENGE;
 import static org.privacyidea.authenticator.Const.CONFIG_VERIFY_SSL;
+import static org.privacyidea.authenticator.Const.DEFAULT_CALL_TIMEOUT;
+import static org.privacyidea.authenticator.Const.DEFAULT_CIRCUIT_FAILURE_RATE;
+import static org.privacyidea.authenticator.Const.DEFAULT_CIRCUIT_OPEN_SECONDS;
+import static org.privacyidea.authenticator.Const.DEFAULT_CIRCUIT_SLOW_CALL;
+import static org.privacyidea.authenticator.Const.DEFAULT_HEDGE_PERCENTILE;
 import static org.privacyidea.authenticator.Const.DEFAULT_POLLING_ARRAY;
 import static org.privacyidea.authenticator.Const.DEFAULT_POLLING_INTERVAL;
+import static org.privacyidea.authenticator.Const.HEADER_ACCEPT_LANGUAGE;
 import static org.privacyidea.authenticator.Const.TRUE;
 
-class Configuration
+/**
+ * Parsed config of one authenticator execution. Instances are shared between concurrent requests and are immutable.
+ */
+final class Configuration
 {
-    private final String serverURL;
+    private final List<String> serverURLs;
     private final String realm;
     private final boolean doSSLVerify;
     private final boolean doTriggerChallenge;
@@ -57,23 +80,41 @@ class Configuration
     private final String serviceAccountName;
     private final String serviceAccountPass;
     private final String serviceAccountRealm;
-    private final List<String> excludedGroups = new ArrayList<>();
-    private final List<String> includedGroups = new ArrayList<>();
-    private final List<String> forwardedHeaders = new ArrayList<>();
+    private final Set<String> excludedGroups;
+    private final Set<String> includedGroups;
+    private final List<String> forwardedHeaders;
     private final boolean doEnrollToken;
     private final boolean doLog;
     private final String enrollingTokenType;
     private final boolean pollInBrowser;
     private final String pollInBrowserUrl;
-    private final List<Integer> pollingInterval = new ArrayList<>();
+    private final List<Integer> pollingInterval;
     private final String prefTokenType;
-    private final int configHash;
     private final String defaultOTPMessage;
+    private final boolean asyncCalls;
+    private final boolean adaptivePolling;
+    private final int callTimeout;
+    private final boolean circuitBreaker;
+    private final int circuitFailureRate;
+    private final int circuitSlowCall;
+    private final int circuitOpenSeconds;
+    private final boolean circuitOpenSkip;
+    private final Set<String> circuitSkipGroups;
+    private final boolean hedging;
+    private final int hedgePercentile;
 
     Configuration(Map<String, String> configMap)
     {
-        this.configHash = configMap.hashCode();
-        this.serverURL = configMap.get(CONFIG_SERVER);
+        List<String> urls = new ArrayList<>();
+        for (String url : splitList(configMap.get(CONFIG_SERVER)))
+        {
+            if (!url.trim().isEmpty())
+            {
+                urls.add(url.trim());
+            }
+        }
+        // Keep a single null entry if no server is configured, so that the error shows up on the first request
+        this.serverURLs = urls.isEmpty() ? Collections.singletonList(null) : List.copyOf(urls);
         this.realm = configMap.get(CONFIG_REALM) == null ? "" : configMap.get(CONFIG_REALM);
         this.doSSLVerify = configMap.get(CONFIG_VERIFY_SSL) != null && configMap.get(CONFIG_VERIFY_SSL).equals(TRUE);
         this.doTriggerChallenge = configMap.get(CONFIG_TRIGGER_CHALLENGE) != null && configMap.get(CONFIG_TRIGGER_CHALLENGE).equals(TRUE);
@@ -89,60 +130,113 @@ class Configuration
         this.prefTokenType = (configMap.get(CONFIG_PREF_TOKEN_TYPE) == null ? TOKEN_TYPE_OTP : configMap.get(CONFIG_PREF_TOKEN_TYPE)).toLowerCase();
         this.enrollingTokenType = (configMap.get(CONFIG_ENROLL_TOKEN_TYPE) == null ? "" : configMap.get(CONFIG_ENROLL_TOKEN_TYPE)).toLowerCase();
         this.doLog = configMap.get(CONFIG_ENABLE_LOG) != null && configMap.get(CONFIG_ENABLE_LOG).equals(TRUE);
+        this.asyncCalls = configMap.get(CONFIG_ASYNC_CALLS) != null && configMap.get(CONFIG_ASYNC_CALLS).equals(TRUE);
+        this.adaptivePolling = configMap.get(CONFIG_ADAPTIVE_POLLING) != null && configMap.get(CONFIG_ADAPTIVE_POLLING).equals(TRUE);
+        this.callTimeout = parsePositiveInt(configMap.get(CONFIG_CALL_TIMEOUT), DEFAULT_CALL_TIMEOUT);
+        this.circuitBreaker = configMap.get(CONFIG_CIRCUIT_BREAKER) != null && configMap.get(CONFIG_CIRCUIT_BREAKER).equals(TRUE);
+        this.circuitFailureRate = Math.min(100, parsePositiveInt(configMap.get(CONFIG_CIRCUIT_FAILURE_RATE), DEFAULT_CIRCUIT_FAILURE_RATE));
+        this.circuitSlowCall = parsePositiveInt(configMap.get(CONFIG_CIRCUIT_SLOW_CALL), DEFAULT_CIRCUIT_SLOW_CALL);
+        this.circuitOpenSeconds = parsePositiveInt(configMap.get(CONFIG_CIRCUIT_OPEN_SECONDS), DEFAULT_CIRCUIT_OPEN_SECONDS);
+        this.circuitOpenSkip = configMap.get(CONFIG_CIRCUIT_OPEN_POLICY) != null &&
+                               configMap.get(CONFIG_CIRCUIT_OPEN_POLICY).toLowerCase(Locale.ROOT).startsWith("skip");
+        this.circuitSkipGroups = Set.copyOf(splitList(configMap.get(CONFIG_CIRCUIT_SKIP_GROUPS)));
+        this.hedging = configMap.get(CONFIG_HEDGING) != null && configMap.get(CONFIG_HEDGING).equals(TRUE);
+        this.hedgePercentile = Math.min(100, parsePositiveInt(configMap.get(CONFIG_HEDGE_PERCENTILE), DEFAULT_HEDGE_PERCENTILE));
 
-        String excludedGroupsStr = configMap.get(CONFIG_EXCLUDED_GROUPS);
-        if (excludedGroupsStr != null)
-        {
-            this.excludedGroups.addAll(Arrays.asList(excludedGroupsStr.split(",")));
-        }
-
-        String includedGroupsStr = configMap.get(CONFIG_INCLUDED_GROUPS);
-        if (includedGroupsStr != null)
-        {
-            this.includedGroups.addAll(Arrays.asList(includedGroupsStr.split(",")));
-        }
+        this.excludedGroups = Set.copyOf(splitList(configMap.get(CONFIG_EXCLUDED_GROUPS)));
+        this.includedGroups = Set.copyOf(splitList(configMap.get(CONFIG_INCLUDED_GROUPS)));
 
-        String forwardedHeadersStr = configMap.get(CONFIG_FORWARDED_HEADERS);
-        if (forwardedHeadersStr != null)
+        // The headers are looked up on every request, so they are de-duplicated and lower-cased once here.
+        // The accept-language header is always forwarded.
+        Set<String> headers = new LinkedHashSet<>();
+        for (String header : splitList(configMap.get(CONFIG_FORWARDED_HEADERS)))
         {
-            this.forwardedHeaders.addAll(Arrays.asList(forwardedHeadersStr.split(",")));
+            String name = header.trim();
+            if (!name.isEmpty())
+            {
+                headers.add(name.toLowerCase(Locale.ROOT));
+            }
         }
+        headers.add(HEADER_ACCEPT_LANGUAGE);
+        this.forwardedHeaders = List.of(headers.toArray(new String[0]));
 
         // Set intervals to either default or configured values
         String s = configMap.get(CONFIG_PUSH_INTERVAL);
         if (s != null)
         {
-            List<String> strPollingIntervals = Arrays.asList(s.split(","));
-            if (!strPollingIntervals.isEmpty())
+            List<Integer> intervals = new ArrayList<>();
+            for (String str : s.split(","))
             {
-                this.pollingInterval.clear();
-                for (String str : strPollingIntervals)
+                try
                 {
-                    try
-                    {
-                        this.pollingInterval.add(Integer.parseInt(str));
-                    }
-                    catch (NumberFormatException e)
-                    {
-                        this.pollingInterval.add(DEFAULT_POLLING_INTERVAL);
-                    }
+                    intervals.add(Integer.parseInt(str.trim()));
+                }
+                catch (NumberFormatException e)
+                {
+                    intervals.add(DEFAULT_POLLING_INTERVAL);
                 }
             }
+            this.pollingInterval = List.copyOf(intervals);
         }
         else
         {
-            this.pollingInterval.addAll(DEFAULT_POLLING_ARRAY);
+            this.pollingInterval = List.copyOf(DEFAULT_POLLING_ARRAY);
         }
     }
 
-    int configHash()
+    /**
+     * Parse a positive integer config value.
+     *
+     * @param value        config value, can be null
+     * @param defaultValue returned if the value is missing, not a number or not positive
+     * @return the parsed value or the default
+     */
+    private static int parsePositiveInt(String value, int defaultValue)
     {
-        return configHash;
+        if (value == null || value.isEmpty())
+        {
+            return defaultValue;
+        }
+        try
+        {
+            int i = Integer.parseInt(value.trim());
+            return i > 0 ? i : defaultValue;
+        }
+        catch (NumberFormatException e)
+        {
+            return defaultValue;
+        }
     }
 
+    /**
+     * Split a comma separated config value.
+     *
+     * @param value config value, can be null
+     * @return unmodifiable list of the values, empty if the value is null
+     */
+    private static List<String> splitList(String value)
+    {
+        if (value == null)
+        {
+            return List.of();
+        }
+        return List.of(value.split(","));
+    }
+
+    /**
+     * @return the first configured privacyIDEA server
+     */
     String serverURL()
     {
-        return serverURL;
+        return serverURLs.get(0);
+    }
+
+    /**
+     * @return all configured privacyIDEA servers
+     */
+    List<String> serverURLs()
+    {
+        return serverURLs;
     }
 
     String realm()
@@ -175,16 +269,19 @@ class Configuration
         return serviceAccountRealm;
     }
 
-    List<String> excludedGroups()
+    Set<String> excludedGroups()
     {
         return excludedGroups;
     }
 
-    List<String> includedGroups()
+    Set<String> includedGroups()
     {
         return includedGroups;
     }
 
+    /**
+     * @return the distinct, lower-cased names of the headers to forward, including accept-language
+     */
     List<String> forwardedHeaders()
     {
         return forwardedHeaders;
@@ -224,4 +321,71 @@ class Configuration
     }
 
     String defaultOTPMessage() { return defaultOTPMessage; }
-}
\ No newline at end of file
+
+    boolean asyncCalls()
+    {
+        return asyncCalls;
+    }
+
+    int callTimeout()
+    {
+        return callTimeout;
+    }
+
+    boolean adaptivePolling()
+    {
+        return adaptivePolling;
+    }
+
+    boolean circuitBreaker()
+    {
+        return circuitBreaker;
+    }
+
+    /**
+     * @return percentage of failed or slow calls in the window at which the circuit opens
+     */
+    int circuitFailureRate()
+    {
+        return circuitFailureRate;
+    }
+
+    /**
+     * @return time in milliseconds after which a call counts as slow
+     */
+    int circuitSlowCall()
+    {
+        return circuitSlowCall;
+    }
+
+    int circuitOpenSeconds()
+    {
+        return circuitOpenSeconds;
+    }
+
+    /**
+     * @return true if members of the circuit skip groups are let through while the circuit is open, otherwise the login fails
+     */
+    boolean circuitOpenSkip()
+    {
+        return circuitOpenSkip;
+    }
+
+    Set<String> circuitSkipGroups()
+    {
+        return circuitSkipGroups;
+    }
+
+    boolean hedging()
+    {
+        return hedging;
+    }
+
+    /**
+     * @return percentile of the recent latencies after which a request is hedged
+     */
+    int hedgePercentile()
+    {
+        return hedgePercentile;
+    }
+}
@@ -27,7 +27,12 @@ final class Const
     }
 
     static final String PROVIDER_ID = "privacyidea-authenticator";
+    static final String PREFETCH_PROVIDER_ID = "privacyidea-prefetch";
     static final String PLUGIN_USER_AGENT = "privacyIDEA-Keycloak";
+    // The REST endpoints are available at /realms/{realm}/RESOURCE_PROVIDER_ID
+    static final String RESOURCE_PROVIDER_ID = "privacyidea";
+    // Event listener that exports the login events with privacyIDEA details, enabled in the event settings of the realm
+    static final String EVENT_LISTENER_ID = "privacyidea-events";
 
     static final String DEFAULT_PUSH_MESSAGE_EN = "Please confirm the authentication on your mobile device!";
     static final String DEFAULT_PUSH_MESSAGE_DE = "Bitte bestätigen Sie die Authentifizierung auf ihrem Smartphone!";
@@ -35,6 +40,9 @@ final class Const
     static final String DEFAULT_OTP_MESSAGE_EN = "Please enter your One-Time-Password!";
     static final String DEFAULT_OTP_MESSAGE_DE = "Bitte geben Sie ihr Einmalpasswort ein!";
 
+    static final String UNAVAILABLE_MESSAGE_EN = "The second factor cannot be verified at the moment. Please try again later.";
+    static final String UNAVAILABLE_MESSAGE_DE = "Der zweite Faktor kann im Moment nicht geprüft werden. Bitte versuchen Sie es später erneut.";
+
     static final String TRUE = "true";
 
     static final String HEADER_ACCEPT_LANGUAGE = "accept-language";
@@ -42,6 +50,81 @@ final class Const
     static final int DEFAULT_POLLING_INTERVAL = 2;
     // Will be used if no intervals are specified
     static final List<Integer> DEFAULT_POLLING_ARRAY = Arrays.asList(4, 2, 2, 2, 3);
+    // Limits of the privacyIDEA client cache, can be changed in the SPI config
+    static final int DEFAULT_CLIENT_CACHE_SIZE = 32;
+    static final long DEFAULT_CLIENT_CACHE_IDLE_MINUTES = 30;
+    // Interval in which the cached config maps are compared with their source, to notice changes made in place
+    static final long CLIENT_CACHE_VERIFY_MILLIS = 10_000;
+    // Time to live of the per user group decisions, can be changed in the SPI config
+    static final long DEFAULT_GROUP_CACHE_SECONDS = 60;
+    // Removed and moved groups invalidate the resolved group ids at once, new and renamed groups are picked up after this time
+    static final long GROUP_RESOLUTION_REFRESH_MINUTES = 5;
+    static final int GROUP_DECISION_CACHE_MAX_SIZE = 100000;
+
+    static final long DEFAULT_TOKEN_CACHE_SECONDS = 3600;
+    static final long DEFAULT_TOKEN_CACHE_NEGATIVE_SECONDS = 30;
+    static final int TOKEN_CACHE_MAX_SIZE = 100000;
+
+    static final long PREFETCH_LIFESPAN_SECONDS = 300;
+    static final int PREFETCH_MAX_SIZE = 10000;
+    // HTTP transport of the privacyIDEA clients, can be changed in the SPI config
+    static final int DEFAULT_CONNECTION_POOL_SIZE = 20;
+    static final long DEFAULT_KEEP_ALIVE_SECONDS = 300;
+    static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+    // Audit log of the MFA decisions, enabled in the SPI config
+    static final String AUDIT_LOGGER = "org.privacyidea.audit";
+    static final int DEFAULT_AUDIT_BUFFER_SIZE = 8192;
+    static final int DEFAULT_AUDIT_SUCCESS_SAMPLE_PERCENT = 100;
+    static final long AUDIT_FLUSH_MILLIS = 200;
+    // Details added to the keycloak login events
+    static final String EVENT_DETAIL_PREFIX = "privacyidea_";
+    static final String EVENT_DETAIL_TOKEN_TYPE = "privacyidea_token_type";
+    static final String EVENT_DETAIL_TRANSACTION_ID = "privacyidea_transaction_id";
+    static final String EVENT_DETAIL_RESULT = "privacyidea_result";
+    static final String EVENT_DETAIL_LATENCY = "privacyidea_latency_ms";
+    static final String EVENT_DETAIL_ERROR_CODE = "privacyidea_error_code";
+    // Batched export of the login events
+    static final int DEFAULT_EVENT_QUEUE_SIZE = 10000;
+    static final int DEFAULT_EVENT_BATCH_SIZE = 500;
+    static final long DEFAULT_EVENT_FLUSH_SECONDS = 5;
+    static final int EVENT_EXPORT_TIMEOUT_SECONDS = 10;
+    // Limits of the executor for privacyIDEA calls, can be changed in the SPI config
+    static final int DEFAULT_ASYNC_THREADS = 64;
+    static final int DEFAULT_ASYNC_QUEUE_SIZE = 256;
+    // Deadline in ms for a single call to privacyIDEA, if the calls run on the executor
+    static final int DEFAULT_CALL_TIMEOUT = 10000;
+    // Long polling for push confirmation, the timeout should be below the idle timeout of proxies
+    static final int DEFAULT_LONG_POLL_TIMEOUT_SECONDS = 25;
+    static final int PUSH_TRANSACTION_LIFESPAN_MINUTES = 5;
+    // Circuit breaker per privacyIDEA server. The rates are evaluated over a rolling window of one second buckets
+    // once the window has enough calls
+    static final int CIRCUIT_WINDOW_SECONDS = 30;
+    static final int CIRCUIT_MIN_CALLS = 10;
+    static final int DEFAULT_CIRCUIT_FAILURE_RATE = 50;
+    static final int DEFAULT_CIRCUIT_SLOW_CALL = 3000;
+    static final int DEFAULT_CIRCUIT_OPEN_SECONDS = 30;
+    // Load balancing between several privacyIDEA servers
+    static final double ENDPOINT_EWMA_WEIGHT = 0.3;
+    static final int ENDPOINT_UNHEALTHY_FAILURES = 3;
+    static final int ENDPOINT_HEALTH_CHECK_SECONDS = 10;
+    static final int ENDPOINT_HEALTH_CHECK_TIMEOUT_MILLIS = 2000;
+    static final int TRANSACTION_AFFINITY_MAX_SIZE = 100000;
+    // Hedged requests, the delay is the configured percentile of the last HEDGE_SAMPLES latencies
+    static final int HEDGE_SAMPLES = 256;
+    static final int HEDGE_MIN_SAMPLES = 20;
+    static final int DEFAULT_HEDGE_PERCENTILE = 95;
+    static final int DEFAULT_HEDGE_DELAY_MILLIS = 500;
+    static final int PUSH_TRANSACTION_MAX_PENDING = 100000;
+    static final int PUSH_POLLER_THREADS = 4;
+    static final long PUSH_POLLER_TICK_MILLIS = 250;
+    static final double PUSH_POLL_BACKOFF_FACTOR = 1.5;
+    static final int PUSH_POLL_MAX_INTERVAL_SECONDS = 10;
+    // A node polls a transaction for this long before the other nodes may take it over
+    static final int PUSH_POLL_LEASE_SECONDS = 30;
+    // Adaptive polling uses the static intervals until this many approvals have been seen in a realm
+    static final int ADAPTIVE_POLL_MIN_SAMPLES = 50;
+    // Share of the approvals that should happen between two polls
+    static final double ADAPTIVE_POLL_QUANTILE_STEP = 0.1;
 
     static final String FORM_POLL_INTERVAL = "pollingInterval";
     static final String FORM_TOKEN_ENROLLMENT_QR = "tokenEnrollmentQR";
@@ -55,6 +138,8 @@ final class Const
     static final String FORM_TRANSACTION_ID = "transactionID";
     static final String FORM_PI_SERVER_URL = "piServerUrl";
     static final String FORM_PI_POLL_IN_BROWSER_URL = "piPollInBrowserUrl";
+    static final String FORM_PUSH_POLL_URL = "pushPollUrl";
+    static final String FORM_POLL_DEADLINE = "pollDeadline";
     static final String FORM_PUSH_AVAILABLE = "push_available";
     static final String FORM_OTP_AVAILABLE = "otp_available";
     static final String FORM_PUSH_MESSAGE = "pushMessage";
@@ -77,6 +162,11 @@ final class Const
     static final String AUTH_NOTE_TRANSACTION_ID = "transaction_id";
     static final String AUTH_NOTE_AUTH_COUNTER = "authCounter";
     static final String AUTH_NOTE_ACCEPT_LANGUAGE = "authLanguage";
+    static final String AUTH_NOTE_ROUND_TRIPS = "roundTrips";
+    static final String AUTH_NOTE_FORM = "piForm";
+    // Secret in the push poll URL, binds the long poll to the authentication session
+    static final String AUTH_NOTE_POLL_TOKEN = "piPollToken";
+    static final String AUTH_NOTE_PREFETCHED = "piPrefetchedUser";
 
     // Changing the config value names will reset the current config
     static final String CONFIG_PUSH_INTERVAL = "pipushtokeninterval";
@@ -98,4 +188,54 @@ final class Const
     static final String CONFIG_SERVER = "piserver";
     static final String CONFIG_ENABLE_LOG = "pidolog";
     static final String CONFIG_PREF_TOKEN_TYPE = "preftokentype";
+    static final String CONFIG_ADAPTIVE_POLLING = "piadaptivepolling";
+    static final String CONFIG_ASYNC_CALLS = "piasynccalls";
+    static final String CONFIG_CALL_TIMEOUT = "picalltimeout";
+    static final String CONFIG_CIRCUIT_BREAKER = "picircuitbreaker";
+    static final String CONFIG_CIRCUIT_FAILURE_RATE = "picircuitfailurerate";
+    static final String CONFIG_CIRCUIT_SLOW_CALL = "picircuitslowcall";
+    static final String CONFIG_CIRCUIT_OPEN_SECONDS = "picircuitopenseconds";
+    static final String CONFIG_CIRCUIT_OPEN_POLICY = "picircuitopenpolicy";
+    static final String CONFIG_CIRCUIT_SKIP_GROUPS = "picircuitskipgroups";
+    static final String CONFIG_HEDGING = "pihedging";
+    static final String CONFIG_HEDGE_PERCENTILE = "pihedgepercentile";
+    // Config of the prefetch authenticator
+    static final String CONFIG_PREFETCH_CONFIG_ALIAS = "piprefetchconfig";
+
+    // SPI config values, set for the whole server e.g. with --spi-authenticator-privacyidea-authenticator-client-cache-size
+    static final String SPI_CLIENT_CACHE_SIZE = "clientCacheSize";
+    static final String SPI_CLIENT_CACHE_IDLE_MINUTES = "clientCacheIdleMinutes";
+    static final String SPI_GROUP_CACHE_SECONDS = "groupCacheSeconds";
+    static final String SPI_ASYNC_THREADS = "asyncThreads";
+    static final String SPI_ASYNC_QUEUE_SIZE = "asyncQueueSize";
+    static final String SPI_CLUSTER_TRANSACTIONS = "clusterTransactions";
+    static final String SPI_TOKEN_CACHE_SECONDS = "tokenCacheSeconds";
+    static final String SPI_TOKEN_CACHE_NEGATIVE_SECONDS = "tokenCacheNegativeSeconds";
+    static final String SPI_CONNECTION_POOL_SIZE = "connectionPoolSize";
+    static final String SPI_KEEP_ALIVE_SECONDS = "keepAliveSeconds";
+    static final String SPI_CONNECT_TIMEOUT = "connectTimeout";
+    static final String SPI_HTTP2 = "http2";
+    static final String SPI_AUDIT_LOG = "auditLog";
+    static final String SPI_AUDIT_BUFFER_SIZE = "auditBufferSize";
+    static final String SPI_AUDIT_SUCCESS_SAMPLE_PERCENT = "auditSuccessSamplePercent";
+    static final String SPI_TRACING = "tracing";
+    // Set for the REST endpoints with --spi-realm-restapi-extension-privacyidea-webhook-secret
+    static final String SPI_WEBHOOK_SECRET = "webhookSecret";
+    // Set for the event export with --spi-events-listener-privacyidea-events-file
+    static final String SPI_EVENT_FILE = "file";
+    static final String SPI_EVENT_URL = "url";
+    static final String SPI_EVENT_QUEUE_SIZE = "queueSize";
+    static final String SPI_EVENT_BATCH_SIZE = "batchSize";
+    static final String SPI_EVENT_FLUSH_SECONDS = "flushSeconds";
+
+    // Name of the OpenTelemetry tracer, the spans are only created if tracing is enabled in the SPI config
+    static final String TRACER_NAME = "org.privacyidea.keycloak";
+
+    // Metric names, they are published to the micrometer registry of keycloak if it is available
+    static final String METRIC_REQUEST = "privacyidea.request";
+    static final String METRIC_AUTHENTICATION = "privacyidea.authentication";
+    static final String METRIC_ROUND_TRIPS = "privacyidea.login.round.trips";
+    static final String METRIC_CLIENT_BUILDS = "privacyidea.client.builds";
+    static final String METRIC_CLIENT_CACHE = "privacyidea.client.cache";
+    static final String METRIC_HEDGE = "privacyidea.hedge";
 }
\ No newline at end of file
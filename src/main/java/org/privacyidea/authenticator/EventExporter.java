@@ -0,0 +1,183 @@
+/*
+ * Copyright 2023 NetKnights GmbH - nils.behlen@netknights.it
+ * lukas.matusiewicz@netknights.it
+ * - Modified
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.privacyidea.authenticator;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jboss.logging.Logger;
+import org.keycloak.util.JsonSerialization;
+
+import static org.privacyidea.authenticator.Const.EVENT_EXPORT_TIMEOUT_SECONDS;
+
+/**
+ * Exports login events in batches to a file or an HTTP endpoint. The request thread only adds the event to a bounded queue.
+ * A background thread writes the queue every flush interval, or as soon as a batch is full. If the sink is slower than the
+ * logins, the queue fills up and further events are dropped and counted until the sink catches up, so a slow sink never
+ * slows down the logins.
+ */
+final class EventExporter
+{
+    private final Logger logger = Logger.getLogger(EventExporter.class);
+
+    private final ArrayBlockingQueue<Map<String, Object>> queue;
+    private final int batchSize;
+    private final Path file;
+    private final URI url;
+    private final HttpClient httpClient;
+    private final ScheduledExecutorService flusher;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param file         file the events are appended to as JSON lines, null to not write a file
+     * @param url          endpoint the batches are posted to as JSON arrays, null to not post them
+     * @param queueSize    number of events that can wait for the export
+     * @param batchSize    maximum number of events written at once
+     * @param flushSeconds interval in which the queue is written
+     */
+    EventExporter(Path file, URI url, int queueSize, int batchSize, long flushSeconds)
+    {
+        this.file = file;
+        this.url = url;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        this.batchSize = Math.max(1, batchSize);
+        this.httpClient = url == null ? null : HttpClient.newBuilder()
+                                                         .connectTimeout(Duration.ofSeconds(EVENT_EXPORT_TIMEOUT_SECONDS))
+                                                         .build();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r ->
+                                                                  {
+                                                                      Thread thread = new Thread(r, "privacyidea-event-export");
+                                                                      thread.setDaemon(true);
+                                                                      return thread;
+                                                                  });
+        long interval = Math.max(1, flushSeconds);
+        flusher.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Queue the event for the export. Returns immediately.
+     */
+    void offer(Map<String, Object> event)
+    {
+        if (!queue.offer(event))
+        {
+            dropped.incrementAndGet();
+            return;
+        }
+        if (queue.size() >= batchSize && flushScheduled.compareAndSet(false, true))
+        {
+            try
+            {
+                flusher.execute(this::flush);
+            }
+            catch (RejectedExecutionException e)
+            {
+                // Shutting down, close() writes the rest
+            }
+        }
+    }
+
+    void close()
+    {
+        flusher.shutdown();
+        try
+        {
+            if (!flusher.awaitTermination(EVENT_EXPORT_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+            {
+                flusher.shutdownNow();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        // Write what is left, keycloak is shutting down
+        flush();
+    }
+
+    private synchronized void flush()
+    {
+        flushScheduled.set(false);
+        List<Map<String, Object>> batch = new ArrayList<>(batchSize);
+        while (queue.drainTo(batch, batchSize) > 0)
+        {
+            export(batch);
+            batch.clear();
+        }
+        long lost = dropped.getAndSet(0);
+        if (lost > 0)
+        {
+            logger.warn("The event export could not keep up, " + lost + " events were dropped.");
+        }
+    }
+
+    private void export(List<Map<String, Object>> batch)
+    {
+        try
+        {
+            if (file != null)
+            {
+                StringBuilder lines = new StringBuilder();
+                for (Map<String, Object> event : batch)
+                {
+                    lines.append(JsonSerialization.writeValueAsString(event)).append('\n');
+                }
+                Files.writeString(file, lines, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            if (url != null)
+            {
+                HttpRequest request = HttpRequest.newBuilder(url)
+                                                 .timeout(Duration.ofSeconds(EVENT_EXPORT_TIMEOUT_SECONDS))
+                                                 .header("Content-Type", "application/json")
+                                                 .POST(HttpRequest.BodyPublishers.ofByteArray(JsonSerialization.writeValueAsBytes(batch)))
+                                                 .build();
+                HttpResponse<Void> response = httpClient.send(request, HttpResponse.BodyHandlers.discarding());
+                if (response.statusCode() >= 300)
+                {
+                    logger.warn("Exporting " + batch.size() + " events failed with HTTP status " + response.statusCode());
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            logger.warn("Exporting " + batch.size() + " events failed: " + e.getMessage());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
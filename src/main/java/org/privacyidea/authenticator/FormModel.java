@@ -0,0 +1,154 @@
+/*
+ * Copyright 2023 NetKnights GmbH - nils.behlen@netknights.it
+ * lukas.matusiewicz@netknights.it
+ * - Modified
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.privacyidea.authenticator;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.jboss.logging.Logger;
+import org.keycloak.forms.login.LoginFormsProvider;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.keycloak.util.JsonSerialization;
+
+import static org.privacyidea.authenticator.Const.AUTH_NOTE_FORM;
+import static org.privacyidea.authenticator.Const.DEFAULT_OTP_MESSAGE_DE;
+import static org.privacyidea.authenticator.Const.DEFAULT_OTP_MESSAGE_EN;
+import static org.privacyidea.authenticator.Const.DEFAULT_PUSH_MESSAGE_DE;
+import static org.privacyidea.authenticator.Const.DEFAULT_PUSH_MESSAGE_EN;
+import static org.privacyidea.authenticator.Const.FORM_IMAGE_OTP;
+import static org.privacyidea.authenticator.Const.FORM_IMAGE_PUSH;
+import static org.privacyidea.authenticator.Const.FORM_IMAGE_WEBAUTHN;
+import static org.privacyidea.authenticator.Const.FORM_MODE;
+import static org.privacyidea.authenticator.Const.FORM_OTP_AVAILABLE;
+import static org.privacyidea.authenticator.Const.FORM_OTP_MESSAGE;
+import static org.privacyidea.authenticator.Const.FORM_POLL_IN_BROWSER_FAILED;
+import static org.privacyidea.authenticator.Const.FORM_PUSH_AVAILABLE;
+import static org.privacyidea.authenticator.Const.FORM_PUSH_MESSAGE;
+import static org.privacyidea.authenticator.Const.FORM_TOKEN_ENROLLMENT_QR;
+import static org.privacyidea.authenticator.Const.FORM_U2F_SIGN_REQUEST;
+import static org.privacyidea.authenticator.Const.FORM_UI_LANGUAGE;
+import static org.privacyidea.authenticator.Const.FORM_WEBAUTHN_SIGN_REQUEST;
+
+/**
+ * The state of the privacyIDEA form that stays the same between submissions, like the triggered token types, the messages,
+ * the images and the sign requests. It is kept in one auth note of the authentication session, so the browser does not have
+ * to send it back with every submission. Values that only apply to one rendering are set on the form directly.
+ */
+final class FormModel
+{
+    private static final Logger logger = Logger.getLogger(FormModel.class);
+    private static final TypeReference<LinkedHashMap<String, Object>> TYPE = new TypeReference<>()
+    {
+    };
+
+    private static final Map<String, Object> DEFAULTS_EN = defaults(DEFAULT_PUSH_MESSAGE_EN, DEFAULT_OTP_MESSAGE_EN, "en");
+    private static final Map<String, Object> DEFAULTS_DE = defaults(DEFAULT_PUSH_MESSAGE_DE, DEFAULT_OTP_MESSAGE_DE, "de");
+
+    private final Map<String, Object> values;
+
+    private FormModel(Map<String, Object> values)
+    {
+        this.values = values;
+    }
+
+    private static Map<String, Object> defaults(String pushMessage, String otpMessage, String uiLanguage)
+    {
+        // Always assume OTP is available
+        Map<String, Object> defaults = new LinkedHashMap<>();
+        defaults.put(FORM_MODE, "otp");
+        defaults.put(FORM_WEBAUTHN_SIGN_REQUEST, "");
+        defaults.put(FORM_U2F_SIGN_REQUEST, "");
+        defaults.put(FORM_PUSH_MESSAGE, pushMessage);
+        defaults.put(FORM_OTP_AVAILABLE, true);
+        defaults.put(FORM_OTP_MESSAGE, otpMessage);
+        defaults.put(FORM_PUSH_AVAILABLE, false);
+        defaults.put(FORM_IMAGE_PUSH, "");
+        defaults.put(FORM_IMAGE_OTP, "");
+        defaults.put(FORM_IMAGE_WEBAUTHN, "");
+        defaults.put(FORM_POLL_IN_BROWSER_FAILED, false);
+        defaults.put(FORM_TOKEN_ENROLLMENT_QR, "");
+        defaults.put(FORM_UI_LANGUAGE, uiLanguage);
+        return Map.copyOf(defaults);
+    }
+
+    /**
+     * @param uiLanguage en or de
+     * @return a new model with the default values for the language
+     */
+    static FormModel defaults(String uiLanguage)
+    {
+        return new FormModel(new HashMap<>("de".equals(uiLanguage) ? DEFAULTS_DE : DEFAULTS_EN));
+    }
+
+    /**
+     * @return the model saved in the authentication session, or the defaults if there is none
+     */
+    static FormModel load(AuthenticationSessionModel session)
+    {
+        String note = session.getAuthNote(AUTH_NOTE_FORM);
+        if (note != null)
+        {
+            try
+            {
+                Map<String, Object> values = new HashMap<>(DEFAULTS_EN);
+                values.putAll(JsonSerialization.readValue(note, TYPE));
+                return new FormModel(values);
+            }
+            catch (IOException e)
+            {
+                logger.warn("Failed to read the privacyIDEA form from the authentication session: " + e.getMessage());
+            }
+        }
+        return defaults("en");
+    }
+
+    void save(AuthenticationSessionModel session)
+    {
+        try
+        {
+            session.setAuthNote(AUTH_NOTE_FORM, JsonSerialization.writeValueAsString(values));
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to write the privacyIDEA form to the authentication session: " + e.getMessage());
+        }
+    }
+
+    FormModel set(String name, Object value)
+    {
+        values.put(name, value);
+        return this;
+    }
+
+    String getString(String name)
+    {
+        Object value = values.get(name);
+        return value == null ? null : value.toString();
+    }
+
+    /**
+     * Set all values as attributes of the form.
+     */
+    LoginFormsProvider apply(LoginFormsProvider form)
+    {
+        values.forEach(form::setAttribute);
+        return form;
+    }
+}
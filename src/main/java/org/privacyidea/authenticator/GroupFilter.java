@@ -0,0 +1,243 @@
+/*
+ * Copyright 2023 NetKnights GmbH - nils.behlen@netknights.it
+ * lukas.matusiewicz@netknights.it
+ * - Modified
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.privacyidea.authenticator;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import static org.privacyidea.authenticator.Const.DEFAULT_GROUP_CACHE_SECONDS;
+import static org.privacyidea.authenticator.Const.GROUP_DECISION_CACHE_MAX_SIZE;
+import static org.privacyidea.authenticator.Const.GROUP_RESOLUTION_REFRESH_MINUTES;
+
+/**
+ * Decides if a user is skipped because of the included or excluded groups of a configuration.
+ * <p>
+ * The configured group names are resolved once per config to the ids of the matching groups and all their subgroups,
+ * so membership in a subgroup counts as membership in the configured group. The resolution is kept independently of the
+ * decision cache, so that logins do not walk the group tree even if the decisions are not cached. Removed and moved groups
+ * invalidate it, keycloak has no event for new or renamed groups, so it is refreshed every few minutes as well.
+ * <p>
+ * The decision per user is cached for a short time, because loading the groups of federated users can be expensive.
+ * Removed users and groups and moved groups invalidate the cache, other membership changes take effect when the cached
+ * decision expires.
+ */
+final class GroupFilter
+{
+    private final ConcurrentHashMap<String, ResolvedGroups> resolved = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Decision> decisions = new ConcurrentHashMap<>();
+    private volatile long ttlMillis = TimeUnit.SECONDS.toMillis(DEFAULT_GROUP_CACHE_SECONDS);
+
+    private static final class ResolvedGroups
+    {
+        private final Configuration config;
+        private final Set<String> included;
+        private final Set<String> excluded;
+        private final Set<String> circuitSkip;
+        private final long expires;
+
+        private ResolvedGroups(Configuration config, Set<String> included, Set<String> excluded, Set<String> circuitSkip, long expires)
+        {
+            this.config = config;
+            this.included = included;
+            this.excluded = excluded;
+            this.circuitSkip = circuitSkip;
+            this.expires = expires;
+        }
+    }
+
+    private static final class Decision
+    {
+        private final Configuration config;
+        private final String userId;
+        private final boolean skip;
+        private final long expires;
+
+        private Decision(Configuration config, String userId, boolean skip, long expires)
+        {
+            this.config = config;
+            this.userId = userId;
+            this.skip = skip;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Set how long the decisions are cached. 0 disables the decision cache, the resolved groups are cached anyway.
+     *
+     * @param seconds time to live in seconds
+     */
+    void configure(long seconds)
+    {
+        this.ttlMillis = TimeUnit.SECONDS.toMillis(Math.max(0, seconds));
+        clear();
+    }
+
+    /**
+     * Check if the privacyIDEA authentication should be skipped for the user. If included groups are configured, users
+     * that are not a member of any of them are skipped. Otherwise, members of an excluded group are skipped.
+     *
+     * @param configId id of the AuthenticatorConfigModel
+     * @param config   configuration of the execution
+     * @param realm    current realm
+     * @param user     current user
+     * @return true if the user should be skipped
+     */
+    boolean skip(String configId, Configuration config, RealmModel realm, UserModel user)
+    {
+        if (config.includedGroups().isEmpty() && config.excludedGroups().isEmpty())
+        {
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        String key = configId + ":" + user.getId();
+        Decision decision = decisions.get(key);
+        // A changed config is a new Configuration instance, which invalidates the cached entries
+        if (decision != null && decision.config == config && decision.expires > now)
+        {
+            return decision.skip;
+        }
+
+        ResolvedGroups groups = resolve(configId, config, realm, now);
+        boolean skip;
+        if (!config.includedGroups().isEmpty())
+        {
+            skip = !isMember(user, groups.included);
+        }
+        else
+        {
+            skip = isMember(user, groups.excluded);
+        }
+
+        if (ttlMillis > 0)
+        {
+            if (decisions.size() >= GROUP_DECISION_CACHE_MAX_SIZE)
+            {
+                decisions.values().removeIf(d -> d.expires <= now);
+                if (decisions.size() >= GROUP_DECISION_CACHE_MAX_SIZE)
+                {
+                    decisions.clear();
+                }
+            }
+            decisions.put(key, new Decision(config, user.getId(), skip, now + ttlMillis));
+        }
+        return skip;
+    }
+
+    /**
+     * Check if the user is a member of one of the groups that skip the privacyIDEA authentication while the circuit breaker
+     * is open. This is only asked while privacyIDEA is unavailable, so the decision is not cached.
+     *
+     * @param configId id of the AuthenticatorConfigModel
+     * @param config   configuration of the execution
+     * @param realm    current realm
+     * @param user     current user
+     * @return true if the user should be skipped
+     */
+    boolean skipWhileUnavailable(String configId, Configuration config, RealmModel realm, UserModel user)
+    {
+        if (config.circuitSkipGroups().isEmpty())
+        {
+            return false;
+        }
+        return isMember(user, resolve(configId, config, realm, System.currentTimeMillis()).circuitSkip);
+    }
+
+    private boolean isMember(UserModel user, Set<String> groupIds)
+    {
+        if (groupIds.isEmpty())
+        {
+            return false;
+        }
+        return user.getGroupsStream().anyMatch(g -> groupIds.contains(g.getId()));
+    }
+
+    private ResolvedGroups resolve(String configId, Configuration config, RealmModel realm, long now)
+    {
+        ResolvedGroups groups = resolved.get(configId);
+        if (groups != null && groups.config == config && groups.expires > now)
+        {
+            return groups;
+        }
+
+        Set<String> included = new HashSet<>();
+        Set<String> excluded = new HashSet<>();
+        Set<String> circuitSkip = new HashSet<>();
+        Deque<GroupModel> subgroups = new ArrayDeque<>();
+        realm.getGroupsStream().forEach(g ->
+                                        {
+                                            if (config.includedGroups().contains(g.getName()))
+                                            {
+                                                addWithSubgroups(g, included, subgroups);
+                                            }
+                                            else if (config.excludedGroups().contains(g.getName()))
+                                            {
+                                                addWithSubgroups(g, excluded, subgroups);
+                                            }
+                                            if (config.circuitSkipGroups().contains(g.getName()))
+                                            {
+                                                addWithSubgroups(g, circuitSkip, subgroups);
+                                            }
+                                        });
+        groups = new ResolvedGroups(config, Collections.unmodifiableSet(included), Collections.unmodifiableSet(excluded),
+                                    Collections.unmodifiableSet(circuitSkip),
+                                    now + TimeUnit.MINUTES.toMillis(GROUP_RESOLUTION_REFRESH_MINUTES));
+        resolved.put(configId, groups);
+        return groups;
+    }
+
+    private void addWithSubgroups(GroupModel group, Set<String> ids, Deque<GroupModel> queue)
+    {
+        queue.add(group);
+        while (!queue.isEmpty())
+        {
+            GroupModel g = queue.poll();
+            if (ids.add(g.getId()))
+            {
+                g.getSubGroupsStream().forEach(queue::add);
+            }
+        }
+    }
+
+    /**
+     * Remove the cached decisions for the user.
+     *
+     * @param userId id of the user
+     */
+    void invalidateUser(String userId)
+    {
+        decisions.values().removeIf(d -> d.userId.equals(userId));
+    }
+
+    /**
+     * Remove all resolved groups and cached decisions, e.g. because a group has been removed or moved.
+     */
+    void clear()
+    {
+        resolved.clear();
+        decisions.clear();
+    }
+}
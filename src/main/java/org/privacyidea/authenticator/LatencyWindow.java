@@ -0,0 +1,67 @@
+/*
+ * Copyright 2023 NetKnights GmbH - nils.behlen@netknights.it
+ * lukas.matusiewicz@netknights.it
+ * - Modified
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.privacyidea.authenticator;
+
+import java.util.Arrays;
+
+import static org.privacyidea.authenticator.Const.HEDGE_MIN_SAMPLES;
+import static org.privacyidea.authenticator.Const.HEDGE_SAMPLES;
+
+/**
+ * The latencies of the last requests of one kind, used to compute the delay after which a request is hedged.
+ * The percentile is recomputed at most every few samples, because it is asked for on every request.
+ */
+final class LatencyWindow
+{
+    private final long[] samples = new long[HEDGE_SAMPLES];
+    private int count;
+    private int next;
+    private int percentile = -1;
+    private long cached = -1;
+    private int samplesSinceCached;
+
+    synchronized void record(long millis)
+    {
+        samples[next] = millis;
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+        samplesSinceCached++;
+    }
+
+    /**
+     * @param percentile percentile between 1 and 100
+     * @return the latency at the percentile in milliseconds, -1 if there are not enough samples yet
+     */
+    synchronized long percentile(int percentile)
+    {
+        if (count < HEDGE_MIN_SAMPLES)
+        {
+            return -1;
+        }
+        if (cached < 0 || percentile != this.percentile || samplesSinceCached >= HEDGE_MIN_SAMPLES)
+        {
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+            cached = sorted[Math.max(0, Math.min(count - 1, index))];
+            this.percentile = percentile;
+            samplesSinceCached = 0;
+        }
+        return cached;
+    }
+}
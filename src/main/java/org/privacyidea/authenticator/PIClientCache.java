@@ -0,0 +1,348 @@
+/*
+ * Copyright 2023 NetKnights GmbH - nils.behlen@netknights.it
+ * lukas.matusiewicz@netknights.it
+ * - Modified
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.privacyidea.authenticator;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import org.jboss.logging.Logger;
+
+import static org.privacyidea.authenticator.Const.CLIENT_CACHE_VERIFY_MILLIS;
+import static org.privacyidea.authenticator.Const.DEFAULT_CLIENT_CACHE_IDLE_MINUTES;
+import static org.privacyidea.authenticator.Const.DEFAULT_CLIENT_CACHE_SIZE;
+
+/**
+ * Bounded LRU cache of privacyIDEA clients and their configuration. Entries are keyed by the id of the
+ * AuthenticatorConfigModel, so every execution of the authenticator gets its own client, even if several
+ * executions live in the same realm. An entry is rebuilt when its config changes.
+ * Entries that are evicted, idle for too long or replaced by a rebuild are closed.
+ * <p>
+ * Lookups do not lock. A missing or outdated client is built by the request that puts the new entry, outside of any lock.
+ * Concurrent requests for the same config wait for that build only, requests for other configs are not held up.
+ * <p>
+ * Each entry keeps a copy of the config it was built from and the config map it was last found equal to. Requests only
+ * compare the identity of the map: an update of the config invalidates the cached realm, which then hands out a new map,
+ * and only a new map is compared with the copy. A map changed in place is noticed by a full compare of all entries, which
+ * runs at most every few seconds on one request.
+ */
+final class PIClientCache
+{
+    private final Logger logger = Logger.getLogger(PIClientCache.class);
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile int maxSize = DEFAULT_CLIENT_CACHE_SIZE;
+    private volatile long idleMillis = TimeUnit.MINUTES.toMillis(DEFAULT_CLIENT_CACHE_IDLE_MINUTES);
+    private final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
+    private final AtomicLong lastVerify = new AtomicLong(System.currentTimeMillis());
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong rebuilds = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private static final class Entry
+    {
+        private final CompletableFuture<Pair> pair = new CompletableFuture<>();
+        private final String realmId;
+        private final Map<String, String> configMap;
+        private volatile Map<String, String> source;
+        private volatile long lastAccess;
+
+        private Entry(String realmId, Map<String, String> configMap)
+        {
+            this.realmId = realmId;
+            this.configMap = new HashMap<>(configMap);
+            this.source = configMap;
+            this.lastAccess = System.currentTimeMillis();
+        }
+
+        private boolean matches(Map<String, String> configMap)
+        {
+            if (source == configMap)
+            {
+                return true;
+            }
+            if (!this.configMap.equals(configMap))
+            {
+                return false;
+            }
+            source = configMap;
+            return true;
+        }
+    }
+
+    /**
+     * Set the limits of the cache. Entries exceeding the new limits are evicted on the next access.
+     *
+     * @param maxSize     maximum number of clients to keep
+     * @param idleMinutes minutes after which an unused client is closed
+     */
+    void configure(int maxSize, long idleMinutes)
+    {
+        this.maxSize = Math.max(1, maxSize);
+        this.idleMillis = TimeUnit.MINUTES.toMillis(Math.max(1, idleMinutes));
+    }
+
+    /**
+     * Get the client for the given config id. If there is none or the config changed, a new one is
+     * created with the given factory and the old one is closed.
+     *
+     * @param configId  id of the AuthenticatorConfigModel
+     * @param realmId   id of the realm the config belongs to
+     * @param configMap current config map of the AuthenticatorConfigModel
+     * @param factory   creates the client and configuration
+     * @return Pair of privacyIDEA client and configuration
+     */
+    Pair get(String configId, String realmId, Map<String, String> configMap, Supplier<Pair> factory)
+    {
+        long now = System.currentTimeMillis();
+        sweep(now);
+        verify(now);
+
+        while (true)
+        {
+            Entry entry = entries.get(configId);
+            if (entry != null && entry.matches(configMap))
+            {
+                entry.lastAccess = now;
+                hits.incrementAndGet();
+                return await(configId, entry);
+            }
+
+            Entry fresh = new Entry(realmId, configMap);
+            if (entry == null ? entries.putIfAbsent(configId, fresh) != null : !entries.replace(configId, entry, fresh))
+            {
+                // Another request put a new entry in the meantime, use that one
+                continue;
+            }
+            if (entry == null)
+            {
+                misses.incrementAndGet();
+            }
+            else
+            {
+                rebuilds.incrementAndGet();
+                retire(entry);
+            }
+            build(configId, fresh, factory);
+            evictOverflow();
+            return await(configId, fresh);
+        }
+    }
+
+    private void build(String configId, Entry entry, Supplier<Pair> factory)
+    {
+        try
+        {
+            entry.pair.complete(factory.get());
+        }
+        catch (RuntimeException | Error e)
+        {
+            // Do not cache the failure, the next request tries again
+            entries.remove(configId, entry);
+            entry.pair.completeExceptionally(e);
+        }
+    }
+
+    private Pair await(String configId, Entry entry)
+    {
+        try
+        {
+            return entry.pair.join();
+        }
+        catch (CompletionException e)
+        {
+            entries.remove(configId, entry);
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error)
+            {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Remove the least recently used entries while the cache holds more than the maximum size. Only runs after a miss.
+     */
+    private void evictOverflow()
+    {
+        while (entries.size() > maxSize)
+        {
+            Map.Entry<String, Entry> oldest = null;
+            for (Map.Entry<String, Entry> e : entries.entrySet())
+            {
+                if (oldest == null || e.getValue().lastAccess < oldest.getValue().lastAccess)
+                {
+                    oldest = e;
+                }
+            }
+            if (oldest != null && entries.remove(oldest.getKey(), oldest.getValue()))
+            {
+                evictions.incrementAndGet();
+                retire(oldest.getValue());
+            }
+        }
+    }
+
+    /**
+     * Remove the entries which were not used within the idle time. Runs at most every half of the idle time, on one
+     * request only.
+     */
+    private void sweep(long now)
+    {
+        long last = lastSweep.get();
+        if (now - last < idleMillis / 2 || !lastSweep.compareAndSet(last, now))
+        {
+            return;
+        }
+        for (Map.Entry<String, Entry> e : entries.entrySet())
+        {
+            Entry entry = e.getValue();
+            if (now - entry.lastAccess > idleMillis && entries.remove(e.getKey(), entry))
+            {
+                evictions.incrementAndGet();
+                retire(entry);
+            }
+        }
+    }
+
+    /**
+     * Compare the config maps the entries were last found equal to with their copies, so a map that was changed in place
+     * is compared in full by the next request. Runs at most every {@link Const#CLIENT_CACHE_VERIFY_MILLIS}, on one request
+     * only.
+     */
+    private void verify(long now)
+    {
+        long last = lastVerify.get();
+        if (now - last < CLIENT_CACHE_VERIFY_MILLIS || !lastVerify.compareAndSet(last, now))
+        {
+            return;
+        }
+        for (Entry entry : entries.values())
+        {
+            Map<String, String> source = entry.source;
+            if (source != null && !entry.configMap.equals(source))
+            {
+                entry.source = null;
+            }
+        }
+    }
+
+    /**
+     * Get the client of the given config id if it has been built, without building or rebuilding it. Used by background
+     * tasks that have no config model at hand, so they always use the current client of a config.
+     *
+     * @param configId id of the AuthenticatorConfigModel
+     * @return Pair of privacyIDEA client and configuration, null if there is none
+     */
+    Pair current(String configId)
+    {
+        Entry entry = configId == null ? null : entries.get(configId);
+        if (entry == null || !entry.pair.isDone() || entry.pair.isCompletedExceptionally())
+        {
+            return null;
+        }
+        return entry.pair.join();
+    }
+
+    /**
+     * Close and remove the clients of the given realm, e.g. because the realm has been removed.
+     *
+     * @param realmId id of the realm
+     */
+    void removeRealm(String realmId)
+    {
+        for (Map.Entry<String, Entry> e : entries.entrySet())
+        {
+            if (e.getValue().realmId.equals(realmId) && entries.remove(e.getKey(), e.getValue()))
+            {
+                retire(e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Close and remove all clients.
+     */
+    void clear()
+    {
+        for (Map.Entry<String, Entry> e : entries.entrySet())
+        {
+            if (entries.remove(e.getKey(), e.getValue()))
+            {
+                retire(e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Close the client of a removed entry. A client that is still being built is closed as soon as it is done.
+     */
+    private void retire(Entry entry)
+    {
+        entry.pair.thenAccept(this::closeClient);
+    }
+
+    private void closeClient(Pair pair)
+    {
+        try
+        {
+            pair.pool().close();
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to close retired privacyIDEA client: " + e.getMessage());
+        }
+    }
+
+    int size()
+    {
+        return entries.size();
+    }
+
+    long hits()
+    {
+        return hits.get();
+    }
+
+    long misses()
+    {
+        return misses.get();
+    }
+
+    long rebuilds()
+    {
+        return rebuilds.get();
+    }
+
+    long evictions()
+    {
+        return evictions.get();
+    }
+}
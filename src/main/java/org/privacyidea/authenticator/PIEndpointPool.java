@@ -0,0 +1,482 @@
+/*
+ * Copyright 2023 NetKnights GmbH - nils.behlen@netknights.it
+ * lukas.matusiewicz@netknights.it
+ * - Modified
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.privacyidea.authenticator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import org.jboss.logging.Logger;
+import org.privacyidea.PIResponse;
+import org.privacyidea.PrivacyIDEA;
+
+import static org.privacyidea.authenticator.Const.ENDPOINT_EWMA_WEIGHT;
+import static org.privacyidea.authenticator.Const.ENDPOINT_HEALTH_CHECK_SECONDS;
+import static org.privacyidea.authenticator.Const.ENDPOINT_HEALTH_CHECK_TIMEOUT_MILLIS;
+import static org.privacyidea.authenticator.Const.ENDPOINT_UNHEALTHY_FAILURES;
+import static org.privacyidea.authenticator.Const.PUSH_TRANSACTION_LIFESPAN_MINUTES;
+import static org.privacyidea.authenticator.Const.TRANSACTION_AFFINITY_MAX_SIZE;
+
+/**
+ * The privacyIDEA servers of one configuration. Every server has its own client, circuit breaker and statistics. The
+ * client and circuit breaker can be shared with other pools of the same server.
+ * <p>
+ * Requests go to the healthy server with the lowest load, which is the latency average (EWMA) weighted with the number of
+ * requests currently outstanding. Requests for a transaction go to the server that created it, as long as that server is
+ * healthy. A server is marked unhealthy after several failed requests in a row and gets no more requests until the
+ * background health check can connect to it again.
+ * <p>
+ * When the configuration changes, the pool is closed while calls may still be running on it. The clients are only given
+ * back once those calls are done.
+ */
+final class PIEndpointPool implements Closeable
+{
+    private static final Logger logger = Logger.getLogger(PIEndpointPool.class);
+    private static volatile ScheduledExecutorService healthChecker;
+
+    private final Configuration config;
+    private final List<Endpoint> endpoints;
+    private final ConcurrentHashMap<String, Affinity> affinities = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LatencyWindow> latencies = new ConcurrentHashMap<>();
+    private final ScheduledFuture<?> healthCheck;
+    private final Consumer<PrivacyIDEA> release;
+    // One reference of the owner, which is dropped by close(), and one for every running call
+    private final AtomicInteger references = new AtomicInteger(1);
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    static final class Endpoint
+    {
+        private final String url;
+        private final PrivacyIDEA client;
+        private final CircuitBreaker circuitBreaker;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicInteger failures = new AtomicInteger();
+        private volatile double ewmaMillis;
+        private volatile boolean healthy = true;
+
+        private Endpoint(String url, PrivacyIDEA client, CircuitBreaker circuitBreaker)
+        {
+            this.url = url;
+            this.client = client;
+            this.circuitBreaker = circuitBreaker;
+        }
+
+        String url()
+        {
+            return url;
+        }
+
+        private double load()
+        {
+            return Math.max(1, ewmaMillis) * (outstanding.get() + 1);
+        }
+    }
+
+    private static final class Affinity
+    {
+        private final Endpoint endpoint;
+        private final long expires;
+
+        private Affinity(Endpoint endpoint, long expires)
+        {
+            this.endpoint = endpoint;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * @param config  configuration with the server URLs
+     * @param factory creates the client for a server URL, the clients are closed with the pool
+     */
+    PIEndpointPool(Configuration config, Function<String, PrivacyIDEA> factory)
+    {
+        this(config, factory, null, CircuitBreaker::new);
+    }
+
+    /**
+     * @param config   configuration with the server URLs
+     * @param factory  gets the client for a server URL
+     * @param release  gives the clients back when the pool is closed, instead of closing them
+     * @param breakers gets the circuit breaker of a server URL, so that it outlives the pool
+     */
+    PIEndpointPool(Configuration config, Function<String, PrivacyIDEA> factory, Consumer<PrivacyIDEA> release,
+                   Function<String, CircuitBreaker> breakers)
+    {
+        this.config = config;
+        this.release = release;
+        List<Endpoint> list = new ArrayList<>();
+        for (String url : config.serverURLs())
+        {
+            list.add(new Endpoint(url, factory.apply(url), breakers.apply(url)));
+        }
+        this.endpoints = List.copyOf(list);
+        this.healthCheck = endpoints.size() > 1 ? healthChecker().scheduleWithFixedDelay(this::checkHealth, ENDPOINT_HEALTH_CHECK_SECONDS,
+                                                                                          ENDPOINT_HEALTH_CHECK_SECONDS, TimeUnit.SECONDS) : null;
+    }
+
+    /**
+     * @return the client of the first configured server
+     */
+    PrivacyIDEA primary()
+    {
+        return endpoints.get(0).client;
+    }
+
+    /**
+     * Choose the server for the next request. Servers with an open circuit are skipped.
+     *
+     * @param transactionID transaction the request belongs to, can be null
+     * @return the server, {@link #execute} has to be called with it
+     * @throws CircuitBreaker.OpenException if the circuit is open for all servers
+     */
+    Endpoint acquire(String transactionID)
+    {
+        long now = System.currentTimeMillis();
+        if (endpoints.size() == 1)
+        {
+            Endpoint e = endpoints.get(0);
+            if (allows(e, now))
+            {
+                return e;
+            }
+            throw new CircuitBreaker.OpenException(e.url);
+        }
+
+        Affinity affinity = transactionID == null ? null : affinities.get(transactionID);
+        if (affinity != null && affinity.expires > now && affinity.endpoint.healthy && allows(affinity.endpoint, now))
+        {
+            return affinity.endpoint;
+        }
+
+        Endpoint best = best(null, false, now);
+        if (best == null)
+        {
+            throw new CircuitBreaker.OpenException(String.join(",", config.serverURLs()));
+        }
+        return best;
+    }
+
+    /**
+     * Choose a second server for a hedged request.
+     *
+     * @param exclude the server of the first request
+     * @return another healthy server, null if there is none
+     */
+    Endpoint acquireOther(Endpoint exclude)
+    {
+        if (endpoints.size() == 1)
+        {
+            return null;
+        }
+        return best(exclude, true, System.currentTimeMillis());
+    }
+
+    int size()
+    {
+        return endpoints.size();
+    }
+
+    /**
+     * @param name name of the request
+     * @return the recent latencies of that request over all servers
+     */
+    LatencyWindow latency(String name)
+    {
+        return latencies.computeIfAbsent(name, k -> new LatencyWindow());
+    }
+
+    /**
+     * @return the server with the lowest load that is not excluded and whose circuit is not open, null if there is none
+     */
+    private Endpoint best(Endpoint exclude, boolean healthyOnly, long now)
+    {
+        // Snapshot the load, it changes while sorting. Unhealthy servers are the last resort.
+        Endpoint[] candidates = endpoints.toArray(new Endpoint[0]);
+        double[] load = new double[candidates.length];
+        for (int i = 0; i < candidates.length; i++)
+        {
+            load[i] = candidates[i].healthy ? candidates[i].load() : Double.MAX_VALUE;
+        }
+        Integer[] order = new Integer[candidates.length];
+        Arrays.setAll(order, i -> i);
+        Arrays.sort(order, Comparator.comparingDouble(i -> load[i]));
+        for (Integer i : order)
+        {
+            if (candidates[i] != exclude && (candidates[i].healthy || !healthyOnly) && allows(candidates[i], now))
+            {
+                return candidates[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Run a request on the given server and record its latency and result. If the result is a response with a
+     * transaction id, later requests for that transaction are sent to the same server. Requests returning a boolean are
+     * not recorded unless they throw, the client returns false for a failed request as well as for a negative answer.
+     *
+     * @param endpoint server returned by {@link #acquire}
+     * @param call     the request
+     * @return the result of the request
+     */
+    <T> T execute(Endpoint endpoint, Function<PrivacyIDEA, T> call)
+    {
+        if (!retain())
+        {
+            throw new IllegalStateException("The privacyIDEA client for " + endpoint.url + " has been replaced by a new configuration");
+        }
+        endpoint.outstanding.incrementAndGet();
+        long start = System.nanoTime();
+        boolean failed = true;
+        boolean known = true;
+        try
+        {
+            T result = call.apply(endpoint.client);
+            // The client returns null if the request failed
+            failed = result == null;
+            known = !(result instanceof Boolean);
+            if (result instanceof PIResponse && endpoints.size() > 1)
+            {
+                bind(((PIResponse) result).transactionID, endpoint);
+            }
+            return result;
+        }
+        finally
+        {
+            endpoint.outstanding.decrementAndGet();
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (known)
+            {
+                record(endpoint, millis, failed);
+            }
+            else if (config.circuitBreaker())
+            {
+                endpoint.circuitBreaker.skip();
+            }
+            release();
+        }
+    }
+
+    private boolean allows(Endpoint e, long now)
+    {
+        return !config.circuitBreaker() || e.circuitBreaker.tryAcquire(config, now);
+    }
+
+    private void record(Endpoint e, long millis, boolean failed)
+    {
+        if (config.circuitBreaker())
+        {
+            e.circuitBreaker.record(config, System.currentTimeMillis(), millis, failed);
+        }
+        if (failed)
+        {
+            if (e.failures.incrementAndGet() >= ENDPOINT_UNHEALTHY_FAILURES && e.healthy && endpoints.size() > 1)
+            {
+                logger.warn("privacyIDEA server " + e.url + " failed " + ENDPOINT_UNHEALTHY_FAILURES + " times in a row, marking it unhealthy.");
+                e.healthy = false;
+            }
+            return;
+        }
+        e.failures.set(0);
+        // Concurrent updates may overwrite each other, which does not matter for an average
+        e.ewmaMillis = e.ewmaMillis == 0 ? millis : e.ewmaMillis + ENDPOINT_EWMA_WEIGHT * (millis - e.ewmaMillis);
+    }
+
+    private void bind(String transactionID, Endpoint endpoint)
+    {
+        if (transactionID == null || transactionID.isEmpty())
+        {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (affinities.size() >= TRANSACTION_AFFINITY_MAX_SIZE)
+        {
+            affinities.values().removeIf(a -> a.expires <= now);
+            if (affinities.size() >= TRANSACTION_AFFINITY_MAX_SIZE)
+            {
+                // Without affinity, the request goes to the least loaded server, which works if the servers share their database
+                return;
+            }
+        }
+        affinities.put(transactionID, new Affinity(endpoint, now + TimeUnit.MINUTES.toMillis(PUSH_TRANSACTION_LIFESPAN_MINUTES)));
+    }
+
+    /**
+     * Try to connect to the unhealthy servers. A server that accepts the connection gets requests again.
+     */
+    private void checkHealth()
+    {
+        long now = System.currentTimeMillis();
+        affinities.values().removeIf(a -> a.expires <= now);
+        for (Endpoint e : endpoints)
+        {
+            if (!e.healthy && canConnect(e.url))
+            {
+                logger.info("privacyIDEA server " + e.url + " is reachable again.");
+                e.failures.set(0);
+                e.healthy = true;
+            }
+        }
+    }
+
+    private static boolean canConnect(String url)
+    {
+        try (Socket socket = new Socket())
+        {
+            URI uri = URI.create(url);
+            int port = uri.getPort() != -1 ? uri.getPort() : ("http".equalsIgnoreCase(uri.getScheme()) ? 80 : 443);
+            socket.connect(new InetSocketAddress(uri.getHost(), port), ENDPOINT_HEALTH_CHECK_TIMEOUT_MILLIS);
+            return true;
+        }
+        catch (IOException | IllegalArgumentException e)
+        {
+            return false;
+        }
+    }
+
+    private static ScheduledExecutorService healthChecker()
+    {
+        if (healthChecker == null)
+        {
+            synchronized (PIEndpointPool.class)
+            {
+                if (healthChecker == null)
+                {
+                    healthChecker = Executors.newSingleThreadScheduledExecutor(r ->
+                                                                               {
+                                                                                   Thread thread = new Thread(r, "privacyidea-health-check");
+                                                                                   thread.setDaemon(true);
+                                                                                   return thread;
+                                                                               });
+                }
+            }
+        }
+        return healthChecker;
+    }
+
+    /**
+     * Stop the health checks of all pools.
+     */
+    static synchronized void shutdownHealthChecks()
+    {
+        if (healthChecker != null)
+        {
+            healthChecker.shutdownNow();
+            healthChecker = null;
+        }
+    }
+
+    /**
+     * Retire the pool. Calls that are still running keep the clients open, the last one to finish closes them.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (!closed.compareAndSet(false, true))
+        {
+            return;
+        }
+        if (healthCheck != null)
+        {
+            healthCheck.cancel(false);
+        }
+        if (references.decrementAndGet() == 0)
+        {
+            shutdown();
+        }
+    }
+
+    /**
+     * Take a reference, so the clients stay open until it is given back with {@link #release}. Fails if the pool has
+     * already been closed and drained.
+     *
+     * @return true if the reference was taken
+     */
+    boolean retain()
+    {
+        while (true)
+        {
+            int current = references.get();
+            if (current == 0)
+            {
+                return false;
+            }
+            if (references.compareAndSet(current, current + 1))
+            {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Give back a reference taken with {@link #retain}.
+     */
+    void release()
+    {
+        if (references.decrementAndGet() == 0)
+        {
+            try
+            {
+                shutdown();
+            }
+            catch (IOException e)
+            {
+                logger.warn("Failed to close retired privacyIDEA client: " + e.getMessage());
+            }
+        }
+    }
+
+    private void shutdown() throws IOException
+    {
+        if (release != null)
+        {
+            endpoints.forEach(e -> release.accept(e.client));
+            return;
+        }
+        IOException failure = null;
+        for (Endpoint e : endpoints)
+        {
+            try
+            {
+                e.client.close();
+            }
+            catch (IOException ex)
+            {
+                failure = ex;
+            }
+        }
+        if (failure != null)
+        {
+            throw failure;
+        }
+    }
+}
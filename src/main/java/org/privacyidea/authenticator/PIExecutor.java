@@ -0,0 +1,403 @@
+/*
+ * Copyright 2023 NetKnights GmbH - nils.behlen@netknights.it
+ * lukas.matusiewicz@netknights.it
+ * - Modified
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.privacyidea.authenticator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import org.jboss.logging.Logger;
+import org.keycloak.authentication.AuthenticationFlowError;
+import org.keycloak.authentication.AuthenticationFlowException;
+
+import static org.privacyidea.authenticator.Const.DEFAULT_ASYNC_QUEUE_SIZE;
+import static org.privacyidea.authenticator.Const.DEFAULT_ASYNC_THREADS;
+
+/**
+ * Runs calls to privacyIDEA on a dedicated, bounded executor, so that the keycloak worker thread only waits until the
+ * deadline of the call. If the executor is saturated, calls fail immediately instead of queueing up behind a slow server.
+ * On Java 21+ virtual threads are used, the number of concurrent calls is then limited by a semaphore.
+ */
+final class PIExecutor
+{
+    private final Logger logger = Logger.getLogger(PIExecutor.class);
+
+    private int maxConcurrentCalls = DEFAULT_ASYNC_THREADS;
+    private int queueSize = DEFAULT_ASYNC_QUEUE_SIZE;
+    private volatile ExecutorService executor;
+    private Semaphore permits;
+
+    /**
+     * Set the limits of the executor. Has to be called before the first call is run.
+     *
+     * @param maxConcurrentCalls maximum number of calls to privacyIDEA running at the same time
+     * @param queueSize          number of calls that can wait for a thread, only used with platform threads
+     */
+    synchronized void configure(int maxConcurrentCalls, int queueSize)
+    {
+        this.maxConcurrentCalls = Math.max(1, maxConcurrentCalls);
+        this.queueSize = Math.max(0, queueSize);
+    }
+
+    /**
+     * A call that has been submitted to the executor.
+     */
+    private static final class Task<T>
+    {
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        // Guards the permit: it is released by the task, or by the caller if the task is cancelled before it started
+        private final AtomicBoolean started = new AtomicBoolean();
+        private Semaphore sem;
+        private Future<?> future;
+    }
+
+    /**
+     * Run the call on the executor and wait at most timeoutMillis for the result.
+     *
+     * @param call          the call to privacyIDEA
+     * @param timeoutMillis deadline of the call
+     * @param name          name of the call, used in the error message
+     * @return the result of the call
+     * @throws AuthenticationFlowException with INTERNAL_ERROR if the call could not be run, timed out or failed
+     */
+    <T> T call(Supplier<T> call, long timeoutMillis, String name)
+    {
+        Task<T> task = submit(call, name);
+        return await(task, TimeUnit.MILLISECONDS.toNanos(timeoutMillis), name, timeoutMillis);
+    }
+
+    /**
+     * Run the call on the executor without waiting for it.
+     *
+     * @param call the call to privacyIDEA
+     * @param name name of the call, used in the error message
+     * @return the pending result of the call
+     * @throws AuthenticationFlowException with INTERNAL_ERROR if the executor is saturated
+     */
+    <T> CompletableFuture<T> async(Supplier<T> call, String name)
+    {
+        return submit(call, name).result;
+    }
+
+    /**
+     * Run the call on the executor. If it has not answered after hedgeDelayMillis, run the hedge as well and take the
+     * first successful result of both. The other call is cancelled. If the call fails or returns null before the delay,
+     * the hedge is sent right away. Only use this for calls that can be repeated safely.
+     *
+     * @param call             the call to privacyIDEA
+     * @param hedge            creates the second call when it is needed, returns null if there is nothing to hedge with
+     * @param hedgeDelayMillis time to wait for the first call before hedging
+     * @param timeoutMillis    deadline of both calls together
+     * @param name             name of the call, used in the error message
+     * @param outcome          is told "none" if no hedge was sent, otherwise "primary" or "hedge" depending on which call won
+     * @return the result of the call that answered first, or null if both failed
+     * @throws AuthenticationFlowException with INTERNAL_ERROR if the calls could not be run, timed out or failed
+     */
+    <T> T hedged(Supplier<T> call, Supplier<Supplier<T>> hedge, long hedgeDelayMillis, long timeoutMillis, String name,
+                 Consumer<String> outcome)
+    {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        Task<T> primary = submit(call, name);
+        try
+        {
+            primary.result.get(Math.min(hedgeDelayMillis, timeoutMillis), TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException | ExecutionException e)
+        {
+            // Either still running or failed, both are evaluated below
+        }
+        catch (InterruptedException e)
+        {
+            cancel(primary);
+            Thread.currentThread().interrupt();
+            throw failure("Interrupted while waiting for " + name, e);
+        }
+
+        // A fast failure of the first call is hedged at once instead of being returned
+        boolean primaryFailed = primary.result.isDone() &&
+                                (primary.result.isCompletedExceptionally() || primary.result.getNow(null) == null);
+        Supplier<T> second = primary.result.isDone() && !primaryFailed ? null : hedge.get();
+        Task<T> secondary = null;
+        if (second != null)
+        {
+            try
+            {
+                secondary = submit(second, name);
+            }
+            catch (AuthenticationFlowException e)
+            {
+                // The executor is saturated, keep waiting for the first call only
+            }
+        }
+        if (secondary == null)
+        {
+            outcome.accept("none");
+            return await(primary, deadline - System.nanoTime(), name, timeoutMillis);
+        }
+
+        // Take the first non-null result, a failed call waits for the other one
+        List<Task<T>> pending = new ArrayList<>(List.of(primary, secondary));
+        T result = null;
+        RuntimeException error = null;
+        if (primaryFailed)
+        {
+            pending.remove(primary);
+            error = error(primary, name);
+        }
+        while (!pending.isEmpty())
+        {
+            long remaining = deadline - System.nanoTime();
+            try
+            {
+                CompletableFuture.anyOf(pending.stream().map(t -> t.result).toArray(CompletableFuture[]::new))
+                                 .get(Math.max(0, remaining), TimeUnit.NANOSECONDS);
+            }
+            catch (TimeoutException e)
+            {
+                pending.forEach(this::cancel);
+                throw failure("privacyIDEA did not answer " + name + " within " + timeoutMillis + "ms", e);
+            }
+            catch (InterruptedException e)
+            {
+                pending.forEach(this::cancel);
+                Thread.currentThread().interrupt();
+                throw failure("Interrupted while waiting for " + name, e);
+            }
+            catch (ExecutionException e)
+            {
+                // Handled with the individual result below
+            }
+
+            Task<T> done = pending.stream().filter(t -> t.result.isDone()).findFirst().orElseThrow();
+            pending.remove(done);
+            if (done.result.isCompletedExceptionally())
+            {
+                error = error(done, name);
+                continue;
+            }
+            result = done.result.join();
+            if (result != null)
+            {
+                outcome.accept(done == primary ? "primary" : "hedge");
+                pending.forEach(this::cancel);
+                return result;
+            }
+        }
+        outcome.accept("primary");
+        if (error != null)
+        {
+            throw error;
+        }
+        return null;
+    }
+
+    /**
+     * @return the exception of a call that completed exceptionally
+     */
+    private RuntimeException error(Task<?> task, String name)
+    {
+        try
+        {
+            task.result.join();
+            return null;
+        }
+        catch (CompletionException e)
+        {
+            return e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() :
+                   failure(name + " failed: " + e.getCause(), e.getCause());
+        }
+        catch (CancellationException e)
+        {
+            return failure(name + " was cancelled", e);
+        }
+    }
+
+    private <T> Task<T> submit(Supplier<T> call, String name)
+    {
+        ExecutorService exec = executor();
+        Semaphore sem = permits;
+        if (sem != null && !sem.tryAcquire())
+        {
+            throw failure("Too many concurrent privacyIDEA calls, rejected " + name, null);
+        }
+
+        Task<T> task = new Task<>();
+        task.sem = sem;
+        try
+        {
+            task.future = exec.submit(() ->
+                                      {
+                                          if (!task.started.compareAndSet(false, true))
+                                          {
+                                              return;
+                                          }
+                                          try
+                                          {
+                                              task.result.complete(call.get());
+                                          }
+                                          catch (Throwable t)
+                                          {
+                                              task.result.completeExceptionally(t);
+                                          }
+                                          finally
+                                          {
+                                              release(sem);
+                                          }
+                                      });
+        }
+        catch (RejectedExecutionException e)
+        {
+            release(sem);
+            throw failure("Too many concurrent privacyIDEA calls, rejected " + name, e);
+        }
+        return task;
+    }
+
+    private <T> T await(Task<T> task, long timeoutNanos, String name, long timeoutMillis)
+    {
+        try
+        {
+            return task.result.get(Math.max(0, timeoutNanos), TimeUnit.NANOSECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            cancel(task);
+            throw failure("privacyIDEA did not answer " + name + " within " + timeoutMillis + "ms", e);
+        }
+        catch (InterruptedException e)
+        {
+            cancel(task);
+            Thread.currentThread().interrupt();
+            throw failure("Interrupted while waiting for " + name, e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) e.getCause();
+            }
+            throw failure(name + " failed: " + e.getCause(), e.getCause());
+        }
+    }
+
+    private void cancel(Task<?> task)
+    {
+        task.future.cancel(true);
+        if (task.started.compareAndSet(false, true))
+        {
+            release(task.sem);
+        }
+    }
+
+    private void release(Semaphore sem)
+    {
+        if (sem != null)
+        {
+            sem.release();
+        }
+    }
+
+    private AuthenticationFlowException failure(String message, Throwable cause)
+    {
+        logger.error(message);
+        return new AuthenticationFlowException(message, cause, AuthenticationFlowError.INTERNAL_ERROR);
+    }
+
+    private ExecutorService executor()
+    {
+        ExecutorService exec = executor;
+        if (exec == null)
+        {
+            synchronized (this)
+            {
+                exec = executor;
+                if (exec == null)
+                {
+                    exec = virtualThreadExecutor();
+                    if (exec != null)
+                    {
+                        permits = new Semaphore(maxConcurrentCalls);
+                    }
+                    else
+                    {
+                        exec = platformThreadExecutor();
+                    }
+                    executor = exec;
+                }
+            }
+        }
+        return exec;
+    }
+
+    /**
+     * @return an executor starting a virtual thread per call, null if the runtime does not support virtual threads
+     */
+    private ExecutorService virtualThreadExecutor()
+    {
+        try
+        {
+            // Looked up reflectively because the provider is compiled for Java 11
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException | UnsupportedOperationException e)
+        {
+            return null;
+        }
+    }
+
+    private ExecutorService platformThreadExecutor()
+    {
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConcurrentCalls, maxConcurrentCalls, 60, TimeUnit.SECONDS,
+                                                         queueSize > 0 ? new ArrayBlockingQueue<>(queueSize) :
+                                                         new SynchronousQueue<>(), r ->
+                                                         {
+                                                             Thread t = new Thread(r, "privacyidea-call-" + count.incrementAndGet());
+                                                             t.setDaemon(true);
+                                                             return t;
+                                                         });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    synchronized void shutdown()
+    {
+        if (executor != null)
+        {
+            executor.shutdownNow();
+            executor = null;
+            permits = null;
+        }
+    }
+}
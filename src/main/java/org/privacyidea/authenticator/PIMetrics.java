@@ -0,0 +1,225 @@
+/*
+ * Copyright 2023 NetKnights GmbH - nils.behlen@netknights.it
+ * lukas.matusiewicz@netknights.it
+ * - Modified
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.privacyidea.authenticator;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.privacyidea.authenticator.Const.METRIC_AUTHENTICATION;
+import static org.privacyidea.authenticator.Const.METRIC_CLIENT_BUILDS;
+import static org.privacyidea.authenticator.Const.METRIC_CLIENT_CACHE;
+import static org.privacyidea.authenticator.Const.METRIC_HEDGE;
+import static org.privacyidea.authenticator.Const.METRIC_REQUEST;
+import static org.privacyidea.authenticator.Const.METRIC_ROUND_TRIPS;
+
+/**
+ * Timers and counters for the interaction with privacyIDEA. The meters are registered in the global micrometer registry,
+ * which keycloak exposes on its metrics endpoint if metrics are enabled. Every meter is tagged with the name of the realm.
+ * If micrometer is not on the classpath, all methods do nothing.
+ */
+final class PIMetrics
+{
+    private static final boolean AVAILABLE = isAvailable();
+
+    // Meters are looked up by their tags once and reused, the lookup in the registry is more expensive
+    private final ConcurrentHashMap<String, Object> meters = new ConcurrentHashMap<>();
+
+    /**
+     * Run a call to privacyIDEA and record its latency and whether it failed.
+     *
+     * @param endpoint privacyIDEA endpoint of the call
+     * @param realm    name of the keycloak realm
+     * @param call     the call to privacyIDEA
+     * @return the result of the call
+     */
+    <T> T time(String endpoint, String realm, Supplier<T> call)
+    {
+        if (!AVAILABLE)
+        {
+            return call.get();
+        }
+        long start = System.nanoTime();
+        String outcome = "error";
+        try
+        {
+            T result = call.get();
+            outcome = "success";
+            return result;
+        }
+        finally
+        {
+            Micrometer.request(meters, endpoint, realm, outcome).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Count the outcome of a submitted privacyIDEA form.
+     *
+     * @param mode    otp, push, webauthn or u2f
+     * @param outcome success, rejected, challenge, pending or error
+     * @param realm   name of the keycloak realm
+     */
+    void authentication(String mode, String outcome, String realm)
+    {
+        if (AVAILABLE)
+        {
+            Micrometer.authentication(meters, mode, outcome, realm).increment();
+        }
+    }
+
+    /**
+     * Record how many times the form was submitted until the login succeeded.
+     */
+    void roundTrips(int count, String realm)
+    {
+        if (AVAILABLE)
+        {
+            Micrometer.roundTrips(meters, realm).record(count);
+        }
+    }
+
+    /**
+     * Count a privacyIDEA client that was built because no configuration with the same connection settings had one.
+     */
+    void clientBuilt(String realm)
+    {
+        if (AVAILABLE)
+        {
+            Micrometer.clientBuilds(meters, realm).increment();
+        }
+    }
+
+    /**
+     * Count a hedgeable request. The share of primary and hedge is the hedge rate, the share of hedge in those the win rate.
+     *
+     * @param endpoint privacyIDEA endpoint of the request
+     * @param realm    name of the keycloak realm
+     * @param result   none if no hedge was sent, primary or hedge depending on which request answered first
+     */
+    void hedge(String endpoint, String realm, String result)
+    {
+        if (AVAILABLE)
+        {
+            Micrometer.hedge(meters, endpoint, realm, result).increment();
+        }
+    }
+
+    /**
+     * Publish the counters of the client cache.
+     */
+    void bind(PIClientCache cache)
+    {
+        if (AVAILABLE)
+        {
+            Micrometer.bind(cache);
+        }
+    }
+
+    private static boolean isAvailable()
+    {
+        try
+        {
+            Class.forName("io.micrometer.core.instrument.Metrics", false, PIMetrics.class.getClassLoader());
+            return true;
+        }
+        catch (ClassNotFoundException | LinkageError e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * All references to micrometer are in here, so that the class is only loaded if micrometer is available.
+     */
+    private static final class Micrometer
+    {
+        private static Timer request(ConcurrentHashMap<String, Object> meters, String endpoint, String realm, String outcome)
+        {
+            return (Timer) meters.computeIfAbsent(METRIC_REQUEST + '|' + endpoint + '|' + realm + '|' + outcome, k ->
+                    Timer.builder(METRIC_REQUEST)
+                         .description("Latency of the requests to privacyIDEA")
+                         .tag("endpoint", endpoint)
+                         .tag("realm", realm)
+                         .tag("outcome", outcome)
+                         .publishPercentileHistogram()
+                         .minimumExpectedValue(Duration.ofMillis(1))
+                         .maximumExpectedValue(Duration.ofSeconds(30))
+                         .register(Metrics.globalRegistry));
+        }
+
+        private static Counter authentication(ConcurrentHashMap<String, Object> meters, String mode, String outcome, String realm)
+        {
+            return (Counter) meters.computeIfAbsent(METRIC_AUTHENTICATION + '|' + mode + '|' + outcome + '|' + realm, k ->
+                    Counter.builder(METRIC_AUTHENTICATION)
+                           .description("Outcomes of the submitted privacyIDEA forms")
+                           .tag("mode", mode)
+                           .tag("outcome", outcome)
+                           .tag("realm", realm)
+                           .register(Metrics.globalRegistry));
+        }
+
+        private static DistributionSummary roundTrips(ConcurrentHashMap<String, Object> meters, String realm)
+        {
+            return (DistributionSummary) meters.computeIfAbsent(METRIC_ROUND_TRIPS + '|' + realm, k ->
+                    DistributionSummary.builder(METRIC_ROUND_TRIPS)
+                                       .description("Submissions of the privacyIDEA form per successful login")
+                                       .tag("realm", realm)
+                                       .serviceLevelObjectives(1, 2, 3, 5, 10, 20)
+                                       .register(Metrics.globalRegistry));
+        }
+
+        private static Counter clientBuilds(ConcurrentHashMap<String, Object> meters, String realm)
+        {
+            return (Counter) meters.computeIfAbsent(METRIC_CLIENT_BUILDS + '|' + realm, k ->
+                    Counter.builder(METRIC_CLIENT_BUILDS)
+                           .description("privacyIDEA clients built because no config with the same connection had one")
+                           .tag("realm", realm)
+                           .register(Metrics.globalRegistry));
+        }
+
+        private static Counter hedge(ConcurrentHashMap<String, Object> meters, String endpoint, String realm, String result)
+        {
+            return (Counter) meters.computeIfAbsent(METRIC_HEDGE + '|' + endpoint + '|' + realm + '|' + result, k ->
+                    Counter.builder(METRIC_HEDGE)
+                           .description("Hedgeable requests to privacyIDEA by which request answered first")
+                           .tag("endpoint", endpoint)
+                           .tag("realm", realm)
+                           .tag("result", result)
+                           .register(Metrics.globalRegistry));
+        }
+
+        private static void bind(PIClientCache cache)
+        {
+            MeterRegistry registry = Metrics.globalRegistry;
+            FunctionCounter.builder(METRIC_CLIENT_CACHE, cache, PIClientCache::hits).tag("result", "hit").register(registry);
+            FunctionCounter.builder(METRIC_CLIENT_CACHE, cache, PIClientCache::misses).tag("result", "miss").register(registry);
+            FunctionCounter.builder(METRIC_CLIENT_CACHE, cache, PIClientCache::rebuilds).tag("result", "rebuild").register(registry);
+            FunctionCounter.builder(METRIC_CLIENT_CACHE, cache, PIClientCache::evictions).tag("result", "eviction").register(registry);
+            Gauge.builder(METRIC_CLIENT_CACHE + ".size", cache, PIClientCache::size).register(registry);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2023 NetKnights GmbH - nils.behlen@netknights.it
+ * lukas.matusiewicz@netknights.it
+ * - Modified
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.privacyidea.authenticator;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static org.privacyidea.authenticator.Const.TRACER_NAME;
+
+/**
+ * Spans for the steps of the authenticator and the calls to privacyIDEA, created with the global OpenTelemetry instance.
+ * The trace context of the span of each call is sent to privacyIDEA with the forwarded headers as W3C traceparent. If
+ * tracing is disabled in the SPI config or the OpenTelemetry API is not on the classpath, all methods only run the given code.
+ */
+final class PITracing
+{
+    private static final boolean AVAILABLE = isAvailable();
+
+    private volatile boolean enabled;
+
+    void configure(boolean enabled)
+    {
+        this.enabled = enabled && AVAILABLE;
+    }
+
+    /**
+     * Run the code in a new span, which is a child of the current span.
+     *
+     * @param name  name of the span
+     * @param realm name of the keycloak realm
+     * @param code  the code to trace
+     * @return the result of the code
+     */
+    <T> T span(String name, String realm, Supplier<T> code)
+    {
+        if (!enabled)
+        {
+            return code.get();
+        }
+        return Otel.span(name, realm, code);
+    }
+
+    void run(String name, String realm, Runnable code)
+    {
+        if (!enabled)
+        {
+            code.run();
+            return;
+        }
+        Otel.span(name, realm, () ->
+        {
+            code.run();
+            return null;
+        });
+    }
+
+    /**
+     * Add the headers of the current trace context to the headers for privacyIDEA.
+     */
+    void inject(Map<String, String> headers)
+    {
+        if (enabled)
+        {
+            Otel.inject(headers);
+        }
+    }
+
+    private static boolean isAvailable()
+    {
+        try
+        {
+            Class.forName("io.opentelemetry.api.GlobalOpenTelemetry", false, PITracing.class.getClassLoader());
+            return true;
+        }
+        catch (ClassNotFoundException | LinkageError e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * All references to OpenTelemetry are in here, so that the class is only loaded if OpenTelemetry is available.
+     */
+    private static final class Otel
+    {
+        private static final Tracer TRACER = GlobalOpenTelemetry.getTracer(TRACER_NAME);
+
+        private static <T> T span(String name, String realm, Supplier<T> code)
+        {
+            Span span = TRACER.spanBuilder(name).setAttribute("keycloak.realm", realm).startSpan();
+            try (Scope ignored = span.makeCurrent())
+            {
+                return code.get();
+            }
+            catch (RuntimeException | Error e)
+            {
+                span.recordException(e);
+                span.setStatus(StatusCode.ERROR);
+                throw e;
+            }
+            finally
+            {
+                span.end();
+            }
+        }
+
+        private static void inject(Map<String, String> headers)
+        {
+            GlobalOpenTelemetry.getPropagators().getTextMapPropagator().inject(Context.current(), headers, Map::put);
+        }
+    }
+}
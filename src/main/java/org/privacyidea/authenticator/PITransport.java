@@ -0,0 +1,170 @@
+/*
+ * Copyright 2023 NetKnights GmbH - nils.behlen@netknights.it
+ * lukas.matusiewicz@netknights.it
+ * - Modified
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.privacyidea.authenticator;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import org.jboss.logging.Logger;
+import org.privacyidea.PrivacyIDEA;
+
+import static org.privacyidea.authenticator.Const.DEFAULT_CONNECTION_POOL_SIZE;
+import static org.privacyidea.authenticator.Const.DEFAULT_CONNECT_TIMEOUT;
+import static org.privacyidea.authenticator.Const.DEFAULT_KEEP_ALIVE_SECONDS;
+
+/**
+ * HTTP settings of the privacyIDEA clients. All clients use one connection pool, so realms and configurations that point at
+ * the same server reuse each others connections instead of doing a TLS handshake per client. OkHttp only reuses a
+ * connection for the same host with the same TLS settings, clients without certificate verification do not share theirs.
+ * <p>
+ * The settings are applied in {@link #customize}, which takes the builder of the OkHttpClient. The privacyIDEA client of
+ * the SDK version in use builds its OkHttpClient itself and has no option to customize it, so {@link #apply} replaces the
+ * built one once after the build. The field holding it is looked up once. If the SDK changes in a way that it cannot be
+ * found, the SDK defaults are used.
+ */
+final class PITransport
+{
+    private static final Logger logger = Logger.getLogger(PITransport.class);
+    // The field of the privacyIDEA client holding the SDK object with the OkHttpClient, and the field of that object
+    private static final Field[] HTTP_CLIENT_PATH = findHttpClient();
+
+    private volatile ConnectionPool connectionPool = new ConnectionPool(DEFAULT_CONNECTION_POOL_SIZE, DEFAULT_KEEP_ALIVE_SECONDS,
+                                                                        TimeUnit.SECONDS);
+    private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private volatile List<Protocol> protocols = List.of(Protocol.HTTP_2, Protocol.HTTP_1_1);
+    private volatile boolean warned;
+
+    /**
+     * Set the transport settings. Clients that are built afterwards use them.
+     *
+     * @param poolSize         maximum number of idle connections kept for all privacyIDEA servers together
+     * @param keepAliveSeconds time an idle connection is kept
+     * @param connectTimeout   timeout in ms for establishing a connection
+     * @param http2            whether HTTP/2 is offered to the server, so that concurrent calls share one connection
+     */
+    void configure(int poolSize, long keepAliveSeconds, int connectTimeout, boolean http2)
+    {
+        this.connectionPool = new ConnectionPool(Math.max(0, poolSize), Math.max(1, keepAliveSeconds), TimeUnit.SECONDS);
+        this.connectTimeout = Math.max(0, connectTimeout);
+        this.protocols = http2 ? List.of(Protocol.HTTP_2, Protocol.HTTP_1_1) : List.of(Protocol.HTTP_1_1);
+    }
+
+    /**
+     * Apply the transport settings to the builder of an HTTP client for privacyIDEA. If 'Limit privacyIDEA call time' is
+     * enabled, the call timeout of the configuration is set on the HTTP call as well, so that a call that the executor has
+     * given up on frees its connection. Otherwise, the calls are not limited, as before.
+     *
+     * @param builder builder of the HTTP client, keeps its TLS settings and interceptors
+     * @param config  configuration the client is built for
+     * @return the builder
+     */
+    OkHttpClient.Builder customize(OkHttpClient.Builder builder, Configuration config)
+    {
+        builder.connectionPool(connectionPool)
+               .protocols(protocols)
+               .connectTimeout(connectTimeout, TimeUnit.MILLISECONDS);
+        if (config.asyncCalls())
+        {
+            builder.callTimeout(config.callTimeout(), TimeUnit.MILLISECONDS);
+        }
+        return builder;
+    }
+
+    /**
+     * Replace the HTTP client of a newly built privacyIDEA client by one with the transport settings.
+     *
+     * @param client newly built privacyIDEA client
+     * @param config configuration the client was built for
+     * @return the client
+     */
+    PrivacyIDEA apply(PrivacyIDEA client, Configuration config)
+    {
+        if (HTTP_CLIENT_PATH == null)
+        {
+            warnOnce("The HTTP client of the privacyIDEA client was not found, using the default transport settings.");
+            return client;
+        }
+        try
+        {
+            Object holder = HTTP_CLIENT_PATH[0].get(client);
+            OkHttpClient current = holder == null ? null : (OkHttpClient) HTTP_CLIENT_PATH[1].get(holder);
+            if (current != null)
+            {
+                HTTP_CLIENT_PATH[1].set(holder, customize(current.newBuilder(), config).build());
+            }
+        }
+        catch (ReflectiveOperationException | RuntimeException e)
+        {
+            warnOnce("Failed to apply the transport settings to the privacyIDEA client: " + e);
+        }
+        return client;
+    }
+
+    void close()
+    {
+        connectionPool.evictAll();
+    }
+
+    private void warnOnce(String message)
+    {
+        if (!warned)
+        {
+            warned = true;
+            logger.warn(message);
+        }
+    }
+
+    /**
+     * Find the OkHttpClient in the SDK objects held by the privacyIDEA client.
+     *
+     * @return the field holding the SDK object and the field of the OkHttpClient in it, null if there is none
+     */
+    private static Field[] findHttpClient()
+    {
+        try
+        {
+            for (Field holder : PrivacyIDEA.class.getDeclaredFields())
+            {
+                String type = holder.getType().getName();
+                if (Modifier.isStatic(holder.getModifiers()) || !type.startsWith("org.privacyidea.") ||
+                    type.startsWith("org.privacyidea.authenticator."))
+                {
+                    continue;
+                }
+                for (Field field : holder.getType().getDeclaredFields())
+                {
+                    if (!Modifier.isStatic(field.getModifiers()) && OkHttpClient.class.isAssignableFrom(field.getType()))
+                    {
+                        holder.setAccessible(true);
+                        field.setAccessible(true);
+                        return new Field[]{holder, field};
+                    }
+                }
+            }
+        }
+        catch (RuntimeException | LinkageError e)
+        {
+            logger.debug("Looking up the HTTP client of the privacyIDEA client failed: " + e);
+        }
+        return null;
+    }
+}
@@ -21,22 +21,20 @@
  */
 package org.privacyidea.authenticator;
 
-import org.privacyidea.PrivacyIDEA;
-
 public class Pair
 {
-    private final PrivacyIDEA privacyIDEA;
+    private final PIEndpointPool pool;
     private final Configuration configuration;
 
-    public Pair(PrivacyIDEA privacyIDEA, Configuration configuration)
+    public Pair(PIEndpointPool pool, Configuration configuration)
     {
-        this.privacyIDEA = privacyIDEA;
+        this.pool = pool;
         this.configuration = configuration;
     }
 
-    public PrivacyIDEA privacyIDEA()
+    public PIEndpointPool pool()
     {
-        return privacyIDEA;
+        return pool;
     }
 
     public Configuration configuration()
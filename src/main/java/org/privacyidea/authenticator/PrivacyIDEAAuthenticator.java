@@ -23,26 +23,29 @@
  */
 package org.privacyidea.authenticator;
 
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MultivaluedMap;
 import jakarta.ws.rs.core.Response;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import org.jboss.logging.Logger;
 import org.keycloak.authentication.AuthenticationFlowContext;
 import org.keycloak.authentication.AuthenticationFlowError;
 import org.keycloak.authentication.AuthenticationFlowException;
+import org.keycloak.events.EventBuilder;
 import org.keycloak.forms.login.LoginFormsProvider;
-import org.keycloak.models.GroupModel;
+import org.keycloak.models.AuthenticatorConfigModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
+import org.keycloak.sessions.AuthenticationSessionModel;
 import org.keycloak.common.Version;
+import org.keycloak.common.util.SecretGenerator;
 import org.privacyidea.Challenge;
-import org.privacyidea.IPILogger;
 import org.privacyidea.PIResponse;
 import org.privacyidea.PrivacyIDEA;
 import org.privacyidea.RolloutInfo;
@@ -54,11 +57,15 @@ import static org.privacyidea.PIConstants.TOKEN_TYPE_PUSH;
 import static org.privacyidea.PIConstants.TOKEN_TYPE_U2F;
 import static org.privacyidea.PIConstants.TOKEN_TYPE_WEBAUTHN;
 import static org.privacyidea.authenticator.Const.AUTH_NOTE_AUTH_COUNTER;
+import static org.privacyidea.authenticator.Const.AUTH_NOTE_POLL_TOKEN;
+import static org.privacyidea.authenticator.Const.AUTH_NOTE_ROUND_TRIPS;
 import static org.privacyidea.authenticator.Const.AUTH_NOTE_TRANSACTION_ID;
-import static org.privacyidea.authenticator.Const.DEFAULT_OTP_MESSAGE_DE;
-import static org.privacyidea.authenticator.Const.DEFAULT_OTP_MESSAGE_EN;
-import static org.privacyidea.authenticator.Const.DEFAULT_PUSH_MESSAGE_DE;
-import static org.privacyidea.authenticator.Const.DEFAULT_PUSH_MESSAGE_EN;
+import static org.privacyidea.authenticator.Const.DEFAULT_HEDGE_DELAY_MILLIS;
+import static org.privacyidea.authenticator.Const.EVENT_DETAIL_ERROR_CODE;
+import static org.privacyidea.authenticator.Const.EVENT_DETAIL_LATENCY;
+import static org.privacyidea.authenticator.Const.EVENT_DETAIL_RESULT;
+import static org.privacyidea.authenticator.Const.EVENT_DETAIL_TOKEN_TYPE;
+import static org.privacyidea.authenticator.Const.EVENT_DETAIL_TRANSACTION_ID;
 import static org.privacyidea.authenticator.Const.FORM_ERROR;
 import static org.privacyidea.authenticator.Const.FORM_ERROR_MESSAGE;
 import static org.privacyidea.authenticator.Const.FORM_FILE_NAME;
@@ -68,67 +75,332 @@ import static org.privacyidea.authenticator.Const.FORM_IMAGE_WEBAUTHN;
 import static org.privacyidea.authenticator.Const.FORM_MODE;
 import static org.privacyidea.authenticator.Const.FORM_MODE_CHANGED;
 import static org.privacyidea.authenticator.Const.FORM_OTP;
-import static org.privacyidea.authenticator.Const.FORM_OTP_AVAILABLE;
 import static org.privacyidea.authenticator.Const.FORM_OTP_MESSAGE;
 import static org.privacyidea.authenticator.Const.FORM_PI_POLL_IN_BROWSER_URL;
 import static org.privacyidea.authenticator.Const.FORM_PI_SERVER_URL;
+import static org.privacyidea.authenticator.Const.FORM_POLL_DEADLINE;
 import static org.privacyidea.authenticator.Const.FORM_POLL_INTERVAL;
 import static org.privacyidea.authenticator.Const.FORM_POLL_IN_BROWSER;
 import static org.privacyidea.authenticator.Const.FORM_POLL_IN_BROWSER_FAILED;
 import static org.privacyidea.authenticator.Const.FORM_PUSH_AVAILABLE;
 import static org.privacyidea.authenticator.Const.FORM_PUSH_MESSAGE;
+import static org.privacyidea.authenticator.Const.FORM_PUSH_POLL_URL;
 import static org.privacyidea.authenticator.Const.FORM_TOKEN_ENROLLMENT_QR;
 import static org.privacyidea.authenticator.Const.FORM_TRANSACTION_ID;
 import static org.privacyidea.authenticator.Const.FORM_U2F_SIGN_REQUEST;
 import static org.privacyidea.authenticator.Const.FORM_U2F_SIGN_RESPONSE;
-import static org.privacyidea.authenticator.Const.FORM_UI_LANGUAGE;
 import static org.privacyidea.authenticator.Const.FORM_WEBAUTHN_ORIGIN;
 import static org.privacyidea.authenticator.Const.FORM_WEBAUTHN_SIGN_REQUEST;
 import static org.privacyidea.authenticator.Const.FORM_WEBAUTHN_SIGN_RESPONSE;
 import static org.privacyidea.authenticator.Const.HEADER_ACCEPT_LANGUAGE;
 import static org.privacyidea.authenticator.Const.PLUGIN_USER_AGENT;
+import static org.privacyidea.authenticator.Const.PUSH_TRANSACTION_LIFESPAN_MINUTES;
+import static org.privacyidea.authenticator.Const.RESOURCE_PROVIDER_ID;
 import static org.privacyidea.authenticator.Const.TRUE;
+import static org.privacyidea.authenticator.Const.UNAVAILABLE_MESSAGE_DE;
+import static org.privacyidea.authenticator.Const.UNAVAILABLE_MESSAGE_EN;
 
-public class PrivacyIDEAAuthenticator implements org.keycloak.authentication.Authenticator, IPILogger
+public class PrivacyIDEAAuthenticator implements org.keycloak.authentication.Authenticator
 {
     private final Logger logger = Logger.getLogger(PrivacyIDEAAuthenticator.class);
 
-    private final ConcurrentHashMap<String, Pair> piInstanceMap = new ConcurrentHashMap<>();
-    private boolean logEnabled = false;
+    private final PIMetrics metrics = new PIMetrics();
+    private final SharedClients sharedClients = new SharedClients();
+    private final PITransport transport = new PITransport();
+    private final PIClientCache clientCache = new PIClientCache();
+    private final PIExecutor executor = new PIExecutor();
+    private final PushTransactionRegistry pushRegistry = new PushTransactionRegistry(metrics, this::loadConfiguration, clientCache::current);
+    private final GroupFilter groupFilter = new GroupFilter();
+    private final TokenInfoCache tokenInfoCache = new TokenInfoCache();
+    private final ChallengePrefetch challengePrefetch = new ChallengePrefetch();
+    private final AuditLog auditLog = new AuditLog();
+    private final PITracing tracing = new PITracing();
 
     /**
-     * Create new instances of PrivacyIDEA and the Configuration, if it does not exist yet.
-     * Also adds them to the instance map.
+     * Get the instances of PrivacyIDEA and the Configuration for the current authenticator config from the cache.
+     * They are created if they do not exist yet or if the config has been changed. The pool is held for the request,
+     * the caller has to release it.
      *
      * @param context for authentication flow
      */
     private Pair loadConfiguration(final AuthenticationFlowContext context)
     {
-        // Get the configuration and privacyIDEA instance for the current realm
-        // If none is found then create a new one
-        final int incomingHash = context.getAuthenticatorConfig().getConfig().hashCode();
-        final String kcRealm = context.getRealm().getName();
-        final Pair currentPair = piInstanceMap.get(kcRealm);
+        final AuthenticatorConfigModel configModel = context.getAuthenticatorConfig();
+        if (configModel == null)
+        {
+            throw new AuthenticationFlowException("No privacyIDEA configuration found for kc-realm " + context.getRealm().getName(),
+                                                  AuthenticationFlowError.IDENTITY_PROVIDER_NOT_FOUND);
+        }
+        return hold(context.getRealm(), configModel);
+    }
+
+    /**
+     * Get the client and configuration of a config model and hold the pool, so it is not closed while the request still
+     * uses it, even if the config changes meanwhile. The caller has to release the pool.
+     *
+     * @param realm       realm of the config
+     * @param configModel config of a privacyIDEA execution
+     * @return Pair of held client pool and configuration
+     */
+    private Pair hold(RealmModel realm, AuthenticatorConfigModel configModel)
+    {
+        while (true)
+        {
+            Pair pair = loadConfiguration(realm, configModel);
+            if (pair.pool().retain())
+            {
+                return pair;
+            }
+            // Retired after the lookup, the cache already has its replacement
+        }
+    }
+
+    /**
+     * Get the client and configuration of a config model from the cache, or create them.
+     *
+     * @param realm       realm of the config
+     * @param configModel config of a privacyIDEA execution
+     * @return Pair of client pool and configuration
+     */
+    Pair loadConfiguration(RealmModel realm, AuthenticatorConfigModel configModel)
+    {
+        final Map<String, String> configMap = configModel.getConfig();
 
-        if (currentPair == null || incomingHash != currentPair.configuration().configHash())
+        return clientCache.get(configModel.getId(), realm.getId(), configMap, () ->
         {
-            final Map<String, String> configMap = context.getAuthenticatorConfig().getConfig();
             Configuration config = new Configuration(configMap);
             String kcVersion = Version.VERSION;
             String providerVersion = PrivacyIDEAAuthenticator.class.getPackage().getImplementationVersion();
             String fullUserAgent = PLUGIN_USER_AGENT + "/" + providerVersion + " Keycloak/" + kcVersion;
-            PrivacyIDEA privacyIDEA = PrivacyIDEA.newBuilder(config.serverURL(), fullUserAgent)
-                                                 .sslVerify(config.sslVerify())
-                                                 .logger(this)
-                                                 .realm(config.realm())
-                                                 .serviceAccount(config.serviceAccountName(), config.serviceAccountPass())
-                                                 .serviceRealm(config.serviceAccountRealm())
-                                                 .build();
-            Pair pair = new Pair(privacyIDEA, config);
-            piInstanceMap.put(kcRealm, pair);
+            // Clients with the same server and service account are shared, so they authenticate only once
+            PIEndpointPool pool = new PIEndpointPool(config, url -> sharedClients.acquire(config, url, () ->
+            {
+                metrics.clientBuilt(realm.getName());
+                return transport.apply(PrivacyIDEA.newBuilder(url, fullUserAgent)
+                                                  .sslVerify(config.sslVerify())
+                                                  .logger(ClientLogger.of(config))
+                                                  .realm(config.realm())
+                                                  .serviceAccount(config.serviceAccountName(), config.serviceAccountPass())
+                                                  .serviceRealm(config.serviceAccountRealm())
+                                                  .build(), config);
+            }), sharedClients::release, sharedClients::circuitBreaker);
+            return new Pair(pool, config);
+        });
+    }
+
+    PIMetrics metrics()
+    {
+        return metrics;
+    }
+
+    PIClientCache clientCache()
+    {
+        return clientCache;
+    }
+
+    PITransport transport()
+    {
+        return transport;
+    }
+
+    PITracing tracing()
+    {
+        return tracing;
+    }
+
+    AuditLog auditLog()
+    {
+        return auditLog;
+    }
+
+    PIExecutor executor()
+    {
+        return executor;
+    }
+
+    PushTransactionRegistry pushRegistry()
+    {
+        return pushRegistry;
+    }
+
+    GroupFilter groupFilter()
+    {
+        return groupFilter;
+    }
+
+    TokenInfoCache tokenInfoCache()
+    {
+        return tokenInfoCache;
+    }
+
+    ChallengePrefetch challengePrefetch()
+    {
+        return challengePrefetch;
+    }
+
+    /**
+     * Run a call to privacyIDEA and record its latency. The server is chosen by the endpoint pool of the configuration.
+     * If configured, the call runs on the executor and fails with an AuthenticationFlowException if it does not finish
+     * within the configured deadline. Otherwise, it runs directly on the current thread. If the circuit breaker is enabled
+     * and open for all servers, the call is not made and a CircuitBreaker.OpenException is thrown.
+     *
+     * @param context       for authentication flow
+     * @param pair          client pool and configuration of the current execution
+     * @param name          privacyIDEA endpoint of the call, for metrics and error messages
+     * @param transactionID transaction the call belongs to, can be null
+     * @param headers       headers the call forwards to privacyIDEA, get the trace context of the call's span, can be null
+     * @param call          the call to privacyIDEA
+     * @return the result of the call
+     */
+    private <T> T call(AuthenticationFlowContext context, Pair pair, String name, String transactionID, Map<String, String> headers,
+                       Function<PrivacyIDEA, T> call)
+    {
+        Configuration config = pair.configuration();
+        PIEndpointPool.Endpoint endpoint = pair.pool().acquire(transactionID);
+        String realm = context.getRealm().getName();
+        return tracing.span("privacyidea " + name, realm, () -> metrics.time(name, realm, () ->
+        {
+            if (headers != null)
+            {
+                // Lets privacyIDEA continue the trace below this call
+                tracing.inject(headers);
+            }
+            if (config.asyncCalls())
+            {
+                return executor.call(() -> pair.pool().execute(endpoint, call), config.callTimeout(), name);
+            }
+            return pair.pool().execute(endpoint, call);
+        }));
+    }
+
+    /**
+     * Run an idempotent call to privacyIDEA with hedging if it is enabled and several servers are configured. If the call
+     * has not answered after the configured percentile of the recent latencies, the same call is sent to another server
+     * and the first answer is used. Otherwise, this is the same as {@link #call}.
+     */
+    private <T> T hedgedCall(AuthenticationFlowContext context, Pair pair, String name, String transactionID, Function<PrivacyIDEA, T> call)
+    {
+        Configuration config = pair.configuration();
+        PIEndpointPool pool = pair.pool();
+        if (!config.hedging() || pool.size() < 2)
+        {
+            return call(context, pair, name, transactionID, null, call);
+        }
+
+        PIEndpointPool.Endpoint endpoint = pool.acquire(transactionID);
+        LatencyWindow latency = pool.latency(name);
+        long percentile = latency.percentile(config.hedgePercentile());
+        long delay = percentile < 0 ? DEFAULT_HEDGE_DELAY_MILLIS : percentile;
+        String realm = context.getRealm().getName();
+        return tracing.span("privacyidea " + name, realm, () -> metrics.time(name, realm, () ->
+                executor.hedged(timed(latency, () -> pool.execute(endpoint, call)), () ->
+                {
+                    PIEndpointPool.Endpoint other = pool.acquireOther(endpoint);
+                    return other == null ? null : timed(latency, () -> pool.execute(other, call));
+                }, delay, config.callTimeout(), name, result -> metrics.hedge(name, realm, result))));
+    }
+
+    /**
+     * @return the call, recording its latency in the window if it succeeds
+     */
+    private static <T> Supplier<T> timed(LatencyWindow window, Supplier<T> call)
+    {
+        return () ->
+        {
+            long start = System.nanoTime();
+            T result = call.get();
+            if (result != null)
+            {
+                window.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+            return result;
+        };
+    }
+
+    /**
+     * Trigger the challenges of the user in the background, so that they are on their way while the user enters the
+     * password. The privacyIDEA authenticator takes the result instead of triggering them itself.
+     *
+     * @param context     for authentication flow of the prefetch execution, the user has to be known
+     * @param configModel config of the privacyIDEA execution that follows
+     */
+    void prefetchChallenges(AuthenticationFlowContext context, AuthenticatorConfigModel configModel)
+    {
+        Pair pair = hold(context.getRealm(), configModel);
+        try
+        {
+            prefetchChallenges(context, configModel, pair);
+        }
+        finally
+        {
+            pair.pool().release();
+        }
+    }
+
+    private void prefetchChallenges(AuthenticationFlowContext context, AuthenticatorConfigModel configModel, Pair pair)
+    {
+        Configuration config = pair.configuration();
+        UserModel user = context.getUser();
+        if (!config.triggerChallenge() || groupFilter.skip(configModel.getId(), config, context.getRealm(), user))
+        {
+            return;
         }
 
-        return piInstanceMap.get(kcRealm);
+        String username = user.getUsername();
+        Map<String, String> headers = getHeadersToForward(context, config);
+        String realm = context.getRealm().getName();
+        try
+        {
+            PIEndpointPool.Endpoint endpoint = pair.pool().acquire(null);
+            // The request runs in the background, it continues the trace of the current request
+            tracing.inject(headers);
+            challengePrefetch.start(context.getAuthenticationSession(), config, username, () ->
+            {
+                // The request may outlive this one, it holds the pool itself. That cannot fail while this request holds it.
+                pair.pool().retain();
+                try
+                {
+                    return executor.async(() -> metrics.time("validate/triggerchallenge", realm, () ->
+                                                  pair.pool().execute(endpoint, p -> p.triggerChallenges(username, headers))),
+                                          "validate/triggerchallenge")
+                                   .whenComplete((response, e) -> pair.pool().release());
+                }
+                catch (RuntimeException e)
+                {
+                    pair.pool().release();
+                    throw e;
+                }
+            });
+        }
+        catch (CircuitBreaker.OpenException | AuthenticationFlowException e)
+        {
+            // The privacyIDEA authenticator triggers the challenges itself and handles the error
+            logger.warn("Could not prefetch the challenges: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Handle a login while the circuit breaker for the privacyIDEA server is open. Depending on the configuration, members of
+     * the circuit skip groups are let through. Everybody else gets an error page, the login fails closed.
+     */
+    private void circuitOpen(AuthenticationFlowContext context, Configuration config, CircuitBreaker.OpenException e)
+    {
+        logger.warn(e.getMessage());
+        if (config.circuitOpenSkip() &&
+            groupFilter.skipWhileUnavailable(context.getAuthenticatorConfig().getId(), config, context.getRealm(), context.getUser()))
+        {
+            logger.warn("Skipping privacyIDEA for " + context.getUser().getUsername() + " because the server is unavailable.");
+            auditLog.record(AuditLog.TYPE_SKIP, "unavailable", context.getRealm().getName(), context.getUser().getUsername(), null,
+                            null, null);
+            context.success();
+            return;
+        }
+        List<String> language = context.getSession().getContext().getRequestHeaders().getRequestHeader(HEADER_ACCEPT_LANGUAGE);
+        boolean german = language != null && !language.isEmpty() && language.get(0).startsWith("de");
+        Response errorPage = context.form()
+                                    .setError(german ? UNAVAILABLE_MESSAGE_DE : UNAVAILABLE_MESSAGE_EN)
+                                    .createErrorPage(Response.Status.SERVICE_UNAVAILABLE);
+        context.failure(AuthenticationFlowError.INTERNAL_ERROR, errorPage);
     }
 
     /**
@@ -140,31 +412,38 @@ public class PrivacyIDEAAuthenticator implements org.keycloak.authentication.Aut
     @Override
     public void authenticate(AuthenticationFlowContext context)
     {
-        final Pair currentPair = loadConfiguration(context);
+        tracing.run("privacyidea.authenticate", context.getRealm().getName(), () ->
+        {
+            final Pair currentPair = loadConfiguration(context);
+            try
+            {
+                authenticate(context, currentPair);
+            }
+            catch (CircuitBreaker.OpenException e)
+            {
+                circuitOpen(context, currentPair.configuration(), e);
+            }
+            finally
+            {
+                currentPair.pool().release();
+            }
+        });
+    }
 
-        PrivacyIDEA privacyIDEA = currentPair.privacyIDEA();
+    private void authenticate(AuthenticationFlowContext context, Pair currentPair)
+    {
         Configuration config = currentPair.configuration();
-        logEnabled = config.doLog();
         // Get the things that were submitted in the first username+password form
         UserModel user = context.getUser();
         String currentUser = user.getUsername();
 
         // Check if the current user is member of an included or excluded group
-        if (!config.includedGroups().isEmpty())
+        if (tracing.span("privacyidea.groups", context.getRealm().getName(),
+                         () -> groupFilter.skip(context.getAuthenticatorConfig().getId(), config, context.getRealm(), user)))
         {
-            if (user.getGroupsStream().map(GroupModel::getName).noneMatch(config.includedGroups()::contains))
-            {
-                context.success();
-                return;
-            }
-        }
-        else if (!config.excludedGroups().isEmpty())
-        {
-            if (user.getGroupsStream().map(GroupModel::getName).anyMatch(config.excludedGroups()::contains))
-            {
-                context.success();
-                return;
-            }
+            auditLog.record(AuditLog.TYPE_SKIP, "group", context.getRealm().getName(), currentUser, null, null, null);
+            context.success();
+            return;
         }
 
         String currentPassword = null;
@@ -187,49 +466,54 @@ public class PrivacyIDEAAuthenticator implements org.keycloak.authentication.Aut
 
         // Prepare for possibly triggering challenges
         PIResponse triggerResponse = null;
-        String pushMessage = uiLanguage.equals("en") ? DEFAULT_PUSH_MESSAGE_EN : DEFAULT_PUSH_MESSAGE_DE;
-        String otpMessage = uiLanguage.equals("en") ? DEFAULT_OTP_MESSAGE_EN : DEFAULT_OTP_MESSAGE_DE;
+        // Start with the default values, they are kept in the auth session for the following submissions
+        FormModel model = FormModel.defaults(uiLanguage);
         if (!config.defaultOTPMessage().isEmpty())
         {
-            otpMessage = config.defaultOTPMessage();
+            model.set(FORM_OTP_MESSAGE, config.defaultOTPMessage());
         }
-        // Set the default values, always assume OTP is available
-        String tokenEnrollmentQR = "";
         context.form()
-               .setAttribute(FORM_MODE, "otp")
-               .setAttribute(FORM_WEBAUTHN_SIGN_REQUEST, "")
-               .setAttribute(FORM_U2F_SIGN_REQUEST, "")
-               .setAttribute(FORM_PUSH_MESSAGE, pushMessage)
-               .setAttribute(FORM_OTP_AVAILABLE, true)
-               .setAttribute(FORM_OTP_MESSAGE, otpMessage)
-               .setAttribute(FORM_PUSH_AVAILABLE, false)
-               .setAttribute(FORM_IMAGE_PUSH, "")
-               .setAttribute(FORM_IMAGE_OTP, "")
-               .setAttribute(FORM_IMAGE_WEBAUTHN, "")
                .setAttribute(FORM_POLL_IN_BROWSER, false)
-               .setAttribute(FORM_POLL_IN_BROWSER_FAILED, false)
                .setAttribute(FORM_POLL_INTERVAL, config.pollingInterval().get(0));
 
         // Trigger challenges if configured. Service account has precedence over send password
+        long started = System.nanoTime();
         if (config.triggerChallenge())
         {
-            triggerResponse = privacyIDEA.triggerChallenges(currentUser, headers);
+            // The challenges may already have been triggered by the prefetch authenticator
+            ChallengePrefetch.Taken prefetched = challengePrefetch.take(context.getAuthenticationSession(), config, currentUser,
+                                                                        config.callTimeout());
+            triggerResponse = prefetched.response();
+            if (triggerResponse == null && !prefetched.trigger())
+            {
+                // Triggering again would send a second SMS or email, the user can still enter the one already sent
+                logger.warn("The prefetched challenges of " + currentUser + " are not available, they are not triggered again.");
+            }
+            else if (triggerResponse == null)
+            {
+                triggerResponse = call(context, currentPair, "validate/triggerchallenge", null, headers, p -> p.triggerChallenges(currentUser, headers));
+            }
         }
         else if (config.sendPassword())
         {
             if (currentPassword != null)
             {
-                triggerResponse = privacyIDEA.validateCheck(currentUser, currentPassword, null, headers);
+                final String password = currentPassword;
+                triggerResponse = call(context, currentPair, "validate/check", null, headers, p -> p.validateCheck(currentUser, password, null, headers));
             }
             else
             {
-                log("Cannot send password because it is null!");
+                ClientLogger.of(config).log(() -> "Cannot send password because it is null!");
             }
         }
 
         // Evaluate for possibly triggered token
         if (triggerResponse != null)
         {
+            String result = result(triggerResponse);
+            auditLog.record(config.triggerChallenge() ? AuditLog.TYPE_TRIGGER : AuditLog.TYPE_VALIDATE, result,
+                            context.getRealm().getName(), currentUser, null, triggerResponse.transactionID, triggerResponse.error);
+            eventDetails(context, null, result, triggerResponse.transactionID, triggerResponse, started);
             if (triggerResponse.value)
             {
                 context.success();
@@ -244,23 +528,36 @@ public class PrivacyIDEAAuthenticator implements org.keycloak.authentication.Aut
 
             if (!triggerResponse.multichallenge.isEmpty())
             {
-                extractChallengeDataToForm(triggerResponse, context, config);
+                extractChallengeDataToForm(triggerResponse, context, currentPair, model);
             }
 
             // Enroll token if enabled and user does not have one. If something was triggered before, don't even try.
             if (config.enrollToken() && (triggerResponse.transactionID == null || triggerResponse.transactionID.isEmpty()))
             {
-                List<TokenInfo> tokenInfos = privacyIDEA.getTokenInfo(currentUser);
+                String realmId = context.getRealm().getId();
+                Boolean hasTokens = tokenInfoCache.hasTokens(context.getSession(), realmId, currentUser, config);
+                if (hasTokens == null)
+                {
+                    List<TokenInfo> tokenInfos = hedgedCall(context, currentPair, "token", null, p -> p.getTokenInfo(currentUser));
+                    hasTokens = tokenInfos != null && !tokenInfos.isEmpty();
+                    if (tokenInfos != null)
+                    {
+                        tokenInfoCache.put(context.getSession(), realmId, currentUser, config, hasTokens);
+                    }
+                }
 
-                if (tokenInfos == null || tokenInfos.isEmpty())
+                if (!hasTokens)
                 {
-                    RolloutInfo rolloutInfo = privacyIDEA.tokenRollout(currentUser, config.enrollingTokenType());
+                    RolloutInfo rolloutInfo = call(context, currentPair, "token/init", null, null, p -> p.tokenRollout(currentUser, config.enrollingTokenType()));
 
                     if (rolloutInfo != null)
                     {
+                        auditLog.record(AuditLog.TYPE_ENROLL, rolloutInfo.error == null ? AuditLog.RESULT_SUCCESS : "error",
+                                        context.getRealm().getName(), currentUser, config.enrollingTokenType(), null, rolloutInfo.error);
                         if (rolloutInfo.error == null)
                         {
-                            tokenEnrollmentQR = rolloutInfo.googleurl.img;
+                            model.set(FORM_TOKEN_ENROLLMENT_QR, rolloutInfo.googleurl.img);
+                            tokenInfoCache.put(context.getSession(), realmId, currentUser, config, true);
                         }
                         else
                         {
@@ -277,13 +574,9 @@ public class PrivacyIDEAAuthenticator implements org.keycloak.authentication.Aut
         }
         // Prepare the form and auth notes to pass infos to the UI and the next step
         context.getAuthenticationSession().setAuthNote(AUTH_NOTE_AUTH_COUNTER, "0");
+        context.getAuthenticationSession().setAuthNote(AUTH_NOTE_ROUND_TRIPS, "0");
 
-        Response responseForm = context.form()
-                                       .setAttribute(FORM_TOKEN_ENROLLMENT_QR, tokenEnrollmentQR)
-                                       .setAttribute(FORM_UI_LANGUAGE, uiLanguage)
-                                       .createForm(FORM_FILE_NAME);
-
-        context.challenge(responseForm);
+        context.challenge(renderForm(context, context.form(), model));
     }
 
     /**
@@ -294,22 +587,27 @@ public class PrivacyIDEAAuthenticator implements org.keycloak.authentication.Aut
     @Override
     public void action(AuthenticationFlowContext context)
     {
-        loadConfiguration(context);
-        String kcRealm = context.getRealm().getName();
-
-        PrivacyIDEA privacyIDEA;
-        Configuration config;
-        if (piInstanceMap.containsKey(kcRealm))
-        {
-            Pair pair = piInstanceMap.get(kcRealm);
-            privacyIDEA = pair.privacyIDEA();
-            config = pair.configuration();
-        }
-        else
+        tracing.run("privacyidea.action", context.getRealm().getName(), () ->
         {
-            throw new AuthenticationFlowException("No privacyIDEA configuration found for kc-realm " + kcRealm,
-                                                  AuthenticationFlowError.IDENTITY_PROVIDER_NOT_FOUND);
-        }
+            final Pair currentPair = loadConfiguration(context);
+            try
+            {
+                action(context, currentPair);
+            }
+            catch (CircuitBreaker.OpenException e)
+            {
+                circuitOpen(context, currentPair.configuration(), e);
+            }
+            finally
+            {
+                currentPair.pool().release();
+            }
+        });
+    }
+
+    private void action(AuthenticationFlowContext context, Pair currentPair)
+    {
+        Configuration config = currentPair.configuration();
 
         MultivaluedMap<String, String> formData = context.getHttpRequest().getDecodedFormParameters();
         if (formData.containsKey("cancel"))
@@ -321,49 +619,44 @@ public class PrivacyIDEAAuthenticator implements org.keycloak.authentication.Aut
         //logger.info("formData:");
         //formData.forEach((k, v) -> logger.info("key=" + k + ", value=" + v));
 
-        // Get data from the privacyIDEA form
-        String tokenEnrollmentQR = formData.getFirst(FORM_TOKEN_ENROLLMENT_QR);
+        // The state of the form is kept in the auth session, only the input of the user is sent by the browser
+        FormModel model = FormModel.load(context.getAuthenticationSession());
         String currentMode = formData.getFirst(FORM_MODE);
-        boolean pushAvailable = TRUE.equals(formData.getFirst(FORM_PUSH_AVAILABLE));
-        boolean otpAvailable = TRUE.equals(formData.getFirst(FORM_OTP_AVAILABLE));
-        boolean pollInBrowserFailed = TRUE.equals(formData.getFirst(FORM_POLL_IN_BROWSER_FAILED));
-        String pushMessage = formData.getFirst(FORM_PUSH_MESSAGE);
-        String otpMessage = formData.getFirst(FORM_OTP_MESSAGE);
-        String imagePush = formData.getFirst(FORM_IMAGE_PUSH);
-        String imageOTP = formData.getFirst(FORM_IMAGE_OTP);
-        String imageWebauthn = formData.getFirst(FORM_IMAGE_WEBAUTHN);
+        if (currentMode == null)
+        {
+            currentMode = model.getString(FORM_MODE);
+        }
+        model.set(FORM_MODE, currentMode);
+        if (TRUE.equals(formData.getFirst(FORM_POLL_IN_BROWSER_FAILED)))
+        {
+            model.set(FORM_POLL_IN_BROWSER_FAILED, true);
+        }
         String tokenTypeChanged = formData.getFirst(FORM_MODE_CHANGED);
-        String uiLanguage = formData.getFirst(FORM_UI_LANGUAGE);
         String transactionID = context.getAuthenticationSession().getAuthNote(AUTH_NOTE_TRANSACTION_ID);
         String currentUserName = context.getUser().getUsername();
-        String webAuthnSignRequest = formData.getFirst(FORM_WEBAUTHN_SIGN_REQUEST);
         String webAuthnSignResponse = formData.getFirst(FORM_WEBAUTHN_SIGN_RESPONSE);
         // The origin is set by the form every time, no need to put it in the form again
         String origin = formData.getFirst(FORM_WEBAUTHN_ORIGIN);
 
-        String u2fSignRequest = formData.getFirst(FORM_U2F_SIGN_REQUEST);
         String u2fSignResponse = formData.getFirst(FORM_U2F_SIGN_RESPONSE);
+        String realmName = context.getRealm().getName();
+        int roundTrips = countRoundTrip(context);
 
         // Prepare the failure message, the message from privacyIDEA will be appended if possible
         String authenticationFailureMessage = "Authentication failed.";
 
-        // Set the "old" values again
-        form.setAttribute(FORM_TOKEN_ENROLLMENT_QR, tokenEnrollmentQR)
-            .setAttribute(FORM_MODE, currentMode)
-            .setAttribute(FORM_PUSH_AVAILABLE, pushAvailable)
-            .setAttribute(FORM_OTP_AVAILABLE, otpAvailable)
-            .setAttribute(FORM_WEBAUTHN_SIGN_REQUEST, webAuthnSignRequest)
-            .setAttribute(FORM_IMAGE_PUSH, imagePush)
-            .setAttribute(FORM_IMAGE_OTP, imageOTP)
-            .setAttribute(FORM_IMAGE_WEBAUTHN, imageWebauthn)
-            .setAttribute(FORM_U2F_SIGN_REQUEST, u2fSignRequest)
-            .setAttribute(FORM_UI_LANGUAGE, uiLanguage)
-            .setAttribute(FORM_POLL_IN_BROWSER_FAILED, pollInBrowserFailed)
-            .setAttribute(FORM_PUSH_MESSAGE, (pushMessage == null ? DEFAULT_PUSH_MESSAGE_EN : pushMessage))
-            .setAttribute(FORM_OTP_MESSAGE, (otpMessage == null ? DEFAULT_OTP_MESSAGE_EN : otpMessage));
+        PushTransactionRegistry.Transaction pushTransaction = TOKEN_TYPE_PUSH.equals(currentMode) ? pushRegistry.find(context.getSession(), transactionID, context.getRealm()) : null;
+        if (pushTransaction != null)
+        {
+            form.setAttribute(FORM_PUSH_POLL_URL, pushPollUrl(context));
+        }
 
         // Log the error encountered in the browser
-        logger.error(formData.getFirst(FORM_ERROR_MESSAGE));
+        String browserError = formData.getFirst(FORM_ERROR_MESSAGE);
+        if (browserError != null && !browserError.isEmpty())
+        {
+            logger.error(browserError);
+        }
 
         Map<String, String> headers = getHeadersToForward(context, config);
         // Do not show the error message if something was triggered
@@ -371,13 +664,27 @@ public class PrivacyIDEAAuthenticator implements org.keycloak.authentication.Aut
         PIResponse response = null;
 
         // Send a request to privacyIDEA depending on the mode
+        long started = System.nanoTime();
+        String submittedMode = null;
         if (TOKEN_TYPE_PUSH.equals(currentMode))
         {
-            // In push mode, poll for the transaction id to see if the challenge has been answered
-            if (privacyIDEA.pollTransaction(transactionID))
+            submittedMode = TOKEN_TYPE_PUSH;
+            // In push mode, check if the challenge has been answered. Transactions known to the shared poller are read from
+            // its cache, others are polled directly.
+            boolean confirmed;
+            if (pushTransaction != null)
+            {
+                pushRegistry.await(pushTransaction);
+                confirmed = pushTransaction.isConfirmed();
+            }
+            else
+            {
+                confirmed = hedgedCall(context, currentPair, "validate/polltransaction", transactionID, p -> p.pollTransaction(transactionID));
+            }
+            if (confirmed)
             {
                 // If the challenge has been answered, finalize with a call to validate check
-                response = privacyIDEA.validateCheck(currentUserName, "", transactionID, headers);
+                response = call(context, currentPair, "validate/check", transactionID, headers, p -> p.validateCheck(currentUserName, "", transactionID, headers));
             }
         }
         else if (webAuthnSignResponse != null && !webAuthnSignResponse.isEmpty())
@@ -388,18 +695,21 @@ public class PrivacyIDEAAuthenticator implements org.keycloak.authentication.Aut
             }
             else
             {
-                response = privacyIDEA.validateCheckWebAuthn(currentUserName, transactionID, webAuthnSignResponse, origin, headers);
+                submittedMode = TOKEN_TYPE_WEBAUTHN;
+                response = call(context, currentPair, "validate/check", transactionID, headers, p -> p.validateCheckWebAuthn(currentUserName, transactionID, webAuthnSignResponse, origin, headers));
             }
         }
         else if (u2fSignResponse != null && !u2fSignResponse.isEmpty())
         {
-            response = privacyIDEA.validateCheckU2F(currentUserName, transactionID, u2fSignResponse, headers);
+            submittedMode = TOKEN_TYPE_U2F;
+            response = call(context, currentPair, "validate/check", transactionID, headers, p -> p.validateCheckU2F(currentUserName, transactionID, u2fSignResponse, headers));
         }
         else if (!TRUE.equals(tokenTypeChanged))
         {
+            submittedMode = "otp";
             String otp = formData.getFirst(FORM_OTP);
             // If the transaction id is not present, it will be not be added in validateCheck, so no need to check here
-            response = privacyIDEA.validateCheck(currentUserName, otp, transactionID, headers);
+            response = call(context, currentPair, "validate/check", transactionID, headers, p -> p.validateCheck(currentUserName, otp, transactionID, headers));
         }
 
         // Evaluate the response
@@ -408,15 +718,19 @@ public class PrivacyIDEAAuthenticator implements org.keycloak.authentication.Aut
             // On success, finish the execution
             if (response.value)
             {
+                outcome(context, submittedMode, AuditLog.RESULT_SUCCESS, transactionID, response, started);
+                metrics.roundTrips(roundTrips, realmName);
+                pushRegistry.remove(context.getSession(), transactionID);
                 context.success();
                 return;
             }
 
             if (response.error != null)
             {
+                outcome(context, submittedMode, "error", transactionID, response, started);
                 form.setError(response.error.message);
                 form.setAttribute(FORM_ERROR, true);
-                context.failureChallenge(AuthenticationFlowError.INVALID_USER, form.createForm(FORM_FILE_NAME));
+                context.failureChallenge(AuthenticationFlowError.INVALID_USER, renderForm(context, form, model));
                 return;
             }
 
@@ -424,16 +738,23 @@ public class PrivacyIDEAAuthenticator implements org.keycloak.authentication.Aut
             // or another challenge was triggered
             if (!response.multichallenge.isEmpty())
             {
-                extractChallengeDataToForm(response, context, config);
+                outcome(context, submittedMode, "challenge", transactionID, response, started);
+                extractChallengeDataToForm(response, context, currentPair, model);
                 didTrigger = true;
             }
             else
             {
+                outcome(context, submittedMode, "rejected", transactionID, response, started);
                 // The authentication failed without triggering anything so the things that have been sent before were wrong
                 authenticationFailureMessage += "\n" + response.message;
             }
         }
 
+        else if (TOKEN_TYPE_PUSH.equals(submittedMode))
+        {
+            outcome(context, submittedMode, AuditLog.RESULT_PENDING, transactionID, null, started);
+        }
+
         // The authCounter is also used to determine the polling interval for push
         // If the authCounter is bigger than the size of the polling interval list, repeat the last value in the list
         int authCounter = Integer.parseInt(context.getAuthenticationSession().getAuthNote(AUTH_NOTE_AUTH_COUNTER)) + 1;
@@ -441,7 +762,8 @@ public class PrivacyIDEAAuthenticator implements org.keycloak.authentication.Aut
         context.getAuthenticationSession().setAuthNote(AUTH_NOTE_AUTH_COUNTER, Integer.toString(authCounter));
 
         // The message variables could be overwritten if a challenge was triggered. Therefore, add them here at the end
-        form.setAttribute(FORM_POLL_INTERVAL, config.pollingInterval().get(authCounter));
+        int adaptiveInterval = pushTransaction != null ? pushRegistry.adaptiveInterval(pushTransaction) : -1;
+        form.setAttribute(FORM_POLL_INTERVAL, adaptiveInterval > 0 ? adaptiveInterval : config.pollingInterval().get(authCounter));
 
         // Do not display the error if the token type was switched or if another challenge was triggered
         if (!(TRUE.equals(tokenTypeChanged)) && !didTrigger)
@@ -449,17 +771,86 @@ public class PrivacyIDEAAuthenticator implements org.keycloak.authentication.Aut
             form.setError(TOKEN_TYPE_PUSH.equals(currentMode) ? "Authentication not verified yet." : authenticationFailureMessage);
         }
 
-        Response responseForm = form.createForm(FORM_FILE_NAME);
-        context.failureChallenge(AuthenticationFlowError.INVALID_CREDENTIALS, responseForm);
+        context.failureChallenge(AuthenticationFlowError.INVALID_CREDENTIALS, renderForm(context, form, model));
+    }
+
+    /**
+     * Save the model for the next submission and render the form with it. Every response with the privacyIDEA form has to
+     * go through here, the template needs all values of the model.
+     */
+    private static Response renderForm(AuthenticationFlowContext context, LoginFormsProvider form, FormModel model)
+    {
+        model.save(context.getAuthenticationSession());
+        return model.apply(form).createForm(FORM_FILE_NAME);
+    }
+
+    /**
+     * Count the outcome of a submission of the form and add it to the audit log.
+     */
+    private void outcome(AuthenticationFlowContext context, String submittedMode, String result, String transactionID, PIResponse response,
+                         long startedNanos)
+    {
+        String realmName = context.getRealm().getName();
+        metrics.authentication(submittedMode, result, realmName);
+        auditLog.record(TOKEN_TYPE_PUSH.equals(submittedMode) ? AuditLog.TYPE_PUSH : AuditLog.TYPE_VALIDATE, result, realmName,
+                        context.getUser().getUsername(), submittedMode, transactionID, response == null ? null : response.error);
+        eventDetails(context, submittedMode, result, transactionID, response, startedNanos);
+    }
+
+    /**
+     * Add the outcome of privacyIDEA to the keycloak event of the request, so that LOGIN and LOGIN_ERROR events carry it.
+     */
+    private static void eventDetails(AuthenticationFlowContext context, String tokenType, String result, String transactionID,
+                                     PIResponse response, long startedNanos)
+    {
+        EventBuilder event = context.getEvent();
+        if (event == null)
+        {
+            return;
+        }
+        event.detail(EVENT_DETAIL_RESULT, result)
+             .detail(EVENT_DETAIL_LATENCY, Long.toString(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedNanos)));
+        if (tokenType != null)
+        {
+            event.detail(EVENT_DETAIL_TOKEN_TYPE, tokenType);
+        }
+        if (transactionID != null && !transactionID.isEmpty())
+        {
+            event.detail(EVENT_DETAIL_TRANSACTION_ID, transactionID);
+        }
+        if (response != null && response.error != null)
+        {
+            event.detail(EVENT_DETAIL_ERROR_CODE, Integer.toString(response.error.code));
+        }
+    }
+
+    private static String result(PIResponse response)
+    {
+        if (response.value)
+        {
+            return AuditLog.RESULT_SUCCESS;
+        }
+        if (response.error != null)
+        {
+            return "error";
+        }
+        return response.multichallenge.isEmpty() ? "rejected" : "challenge";
     }
 
-    private void extractChallengeDataToForm(PIResponse response, AuthenticationFlowContext context, Configuration config)
+    void extractChallengeDataToForm(PIResponse response, AuthenticationFlowContext context, Pair currentPair, FormModel model)
     {
-        if (context == null || config == null)
+        if (context == null || currentPair == null)
         {
-            error("extractChallengeDataToForm missing parameter!");
+            logger.error("extractChallengeDataToForm missing parameter!");
             return;
         }
+        tracing.run("privacyidea.extractChallengeDataToForm", context.getRealm().getName(),
+                    () -> fillForm(response, context, currentPair, model));
+    }
+
+    private void fillForm(PIResponse response, AuthenticationFlowContext context, Pair currentPair, FormModel model)
+    {
+        Configuration config = currentPair.configuration();
 
         // Variables to configure the UI
         String webAuthnSignRequest = "";
@@ -477,15 +868,15 @@ public class PrivacyIDEAAuthenticator implements org.keycloak.authentication.Aut
         {
             if ("poll".equals(c.getClientMode()))
             {
-                context.form().setAttribute(FORM_IMAGE_PUSH, c.getImage());
+                model.set(FORM_IMAGE_PUSH, c.getImage());
             }
             else if ("interactive".equals(c.getClientMode()))
             {
-                context.form().setAttribute(FORM_IMAGE_OTP, c.getImage());
+                model.set(FORM_IMAGE_OTP, c.getImage());
             }
             if ("webauthn".equals(c.getClientMode()))
             {
-                context.form().setAttribute(FORM_IMAGE_WEBAUTHN, c.getImage());
+                model.set(FORM_IMAGE_WEBAUTHN, c.getImage());
             }
         }
 
@@ -493,6 +884,7 @@ public class PrivacyIDEAAuthenticator implements org.keycloak.authentication.Aut
         if (config.pollInBrowser())
         {
             context.form().setAttribute(FORM_TRANSACTION_ID, response.transactionID);
+            context.form().setAttribute(FORM_POLL_DEADLINE, PUSH_TRANSACTION_LIFESPAN_MINUTES * 60);
             if (config.pollInBrowserUrl().isEmpty())
             {
                 context.form().setAttribute(FORM_PI_POLL_IN_BROWSER_URL, config.serverURL());
@@ -506,8 +898,17 @@ public class PrivacyIDEAAuthenticator implements org.keycloak.authentication.Aut
         // Check for Push
         if (response.pushAvailable())
         {
-            context.form().setAttribute(FORM_PUSH_AVAILABLE, true);
-            context.form().setAttribute(FORM_PUSH_MESSAGE, response.pushMessage());
+            model.set(FORM_PUSH_AVAILABLE, true);
+            model.set(FORM_PUSH_MESSAGE, response.pushMessage());
+
+            // Let the browser long-poll for the confirmation instead of reloading the form
+            if (response.transactionID != null && !response.transactionID.isEmpty())
+            {
+                pushRegistry.register(context.getSession(), response.transactionID, context.getRealm(),
+                                      context.getAuthenticatorConfig().getId(), context.getUser().getUsername(),
+                                      response.triggeredTokenTypes(), currentPair);
+                context.form().setAttribute(FORM_PUSH_POLL_URL, pushPollUrl(context));
+            }
         }
 
         // Check for WebAuthn and U2F
@@ -553,11 +954,50 @@ public class PrivacyIDEAAuthenticator implements org.keycloak.authentication.Aut
             }
         }
 
-        context.form()
-               .setAttribute(FORM_MODE, mode)
-               .setAttribute(FORM_WEBAUTHN_SIGN_REQUEST, webAuthnSignRequest)
-               .setAttribute(FORM_U2F_SIGN_REQUEST, u2fSignRequest)
-               .setAttribute(FORM_OTP_MESSAGE, response.otpMessage());
+        model.set(FORM_MODE, mode)
+             .set(FORM_WEBAUTHN_SIGN_REQUEST, webAuthnSignRequest)
+             .set(FORM_U2F_SIGN_REQUEST, u2fSignRequest)
+             .set(FORM_OTP_MESSAGE, response.otpMessage());
+    }
+
+    /**
+     * Count the submission of the form in the auth session.
+     *
+     * @return the number of submissions in this login, including the current one
+     */
+    private int countRoundTrip(AuthenticationFlowContext context)
+    {
+        String note = context.getAuthenticationSession().getAuthNote(AUTH_NOTE_ROUND_TRIPS);
+        int roundTrips = (note == null ? 0 : Integer.parseInt(note)) + 1;
+        context.getAuthenticationSession().setAuthNote(AUTH_NOTE_ROUND_TRIPS, Integer.toString(roundTrips));
+        return roundTrips;
+    }
+
+    /**
+     * @return the URL of the long-poll endpoint for the given push transaction
+     */
+    private String pushPollUrl(AuthenticationFlowContext context)
+    {
+        // The endpoint only answers requests with the cookie of this authentication session, the tab and the token
+        AuthenticationSessionModel authSession = context.getAuthenticationSession();
+        String token = authSession.getAuthNote(AUTH_NOTE_POLL_TOKEN);
+        if (token == null)
+        {
+            token = SecretGenerator.getInstance().randomString();
+            authSession.setAuthNote(AUTH_NOTE_POLL_TOKEN, token);
+        }
+        return context.getSession()
+                      .getContext()
+                      .getUri()
+                      .getBaseUriBuilder()
+                      .path("realms")
+                      .path(context.getRealm().getName())
+                      .path(RESOURCE_PROVIDER_ID)
+                      .path("poll")
+                      .path(authSession.getTabId())
+                      .path(token)
+                      .build()
+                      .toString();
     }
 
     /**
@@ -568,24 +1008,24 @@ public class PrivacyIDEAAuthenticator implements org.keycloak.authentication.Aut
      * @param config  Configuration
      * @return Map of headers
      */
-    private Map<String, String> getHeadersToForward(AuthenticationFlowContext context, Configuration config)
+    Map<String, String> getHeadersToForward(AuthenticationFlowContext context, Configuration config)
     {
-        Map<String, String> headersToForward = new LinkedHashMap<>();
-        // Take all headers from config plus accept-language
-        config.forwardedHeaders().add(HEADER_ACCEPT_LANGUAGE);
+        List<String> headerNames = config.forwardedHeaders();
+        Map<String, String> headersToForward = new LinkedHashMap<>(headerNames.size() * 2);
+        HttpHeaders requestHeaders = context.getSession().getContext().getRequestHeaders();
 
-        for (String header : config.forwardedHeaders().stream().distinct().collect(Collectors.toList()))
+        for (int i = 0; i < headerNames.size(); i++)
         {
-            List<String> headerValues = context.getSession().getContext().getRequestHeaders().getRequestHeaders().get(header);
+            String header = headerNames.get(i);
+            List<String> headerValues = requestHeaders.getRequestHeader(header);
 
             if (headerValues != null && !headerValues.isEmpty())
             {
-                String temp = String.join(",", headerValues);
-                headersToForward.put(header, temp);
+                headersToForward.put(header, headerValues.size() == 1 ? headerValues.get(0) : String.join(",", headerValues));
             }
             else
             {
-                log("No values for header " + header + " found.");
+                ClientLogger.of(config).log(() -> "No values for header " + header + " found.");
             }
         }
         return headersToForward;
@@ -612,41 +1052,4 @@ public class PrivacyIDEAAuthenticator implements org.keycloak.authentication.Aut
     public void close()
     {
     }
-
-    // IPILogger implementation
-    @Override
-    public void log(String message)
-    {
-        if (logEnabled)
-        {
-            logger.info("PrivacyIDEA Client: " + message);
-        }
-    }
-
-    @Override
-    public void error(String message)
-    {
-        if (logEnabled)
-        {
-            logger.error("PrivacyIDEA Client: " + message);
-        }
-    }
-
-    @Override
-    public void log(Throwable t)
-    {
-        if (logEnabled)
-        {
-            logger.info("PrivacyIDEA Client: ", t);
-        }
-    }
-
-    @Override
-    public void error(Throwable t)
-    {
-        if (logEnabled)
-        {
-            logger.error("PrivacyIDEA Client: ", t);
-        }
-    }
 }
\ No newline at end of file
@@ -28,8 +28,11 @@ import java.util.Arrays;
 import java.util.List;
 import org.keycloak.Config;
 import org.keycloak.models.AuthenticationExecutionModel;
+import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
 import org.keycloak.provider.ProviderConfigProperty;
 
 public class PrivacyIDEAAuthenticatorFactory implements org.keycloak.authentication.AuthenticatorFactory, org.keycloak.authentication.ConfigurableAuthenticatorFactory
@@ -37,6 +40,8 @@ public class PrivacyIDEAAuthenticatorFactory implements org.keycloak.authenticat
     private static final PrivacyIDEAAuthenticator SINGLETON = new PrivacyIDEAAuthenticator();
     private static final List<ProviderConfigProperty> configProperties = new ArrayList<>();
 
+    private boolean clusterTransactions = true;
+
     @Override
     public String getId()
     {
@@ -49,6 +54,11 @@ public class PrivacyIDEAAuthenticatorFactory implements org.keycloak.authenticat
         return SINGLETON;
     }
 
+    static PrivacyIDEAAuthenticator authenticator()
+    {
+        return SINGLETON;
+    }
+
     private static final AuthenticationExecutionModel.Requirement[] REQUIREMENT_CHOICES = {AuthenticationExecutionModel.Requirement.REQUIRED,
                                                                                            AuthenticationExecutionModel.Requirement.DISABLED};
 
@@ -82,7 +92,8 @@ public class PrivacyIDEAAuthenticatorFactory implements org.keycloak.authenticat
         piServerUrl.setType(ProviderConfigProperty.STRING_TYPE);
         piServerUrl.setName(Const.CONFIG_SERVER);
         piServerUrl.setLabel("privacyIDEA URL");
-        piServerUrl.setHelpText("The URL of the privacyIDEA server (complete with scheme, host and port like \"https://<piserver>:port\")");
+        piServerUrl.setHelpText("The URL of the privacyIDEA server (complete with scheme, host and port like \"https://<piserver>:port\"). " +
+                                "Several servers can be set separated with ','. Requests are balanced between them and unavailable servers are skipped.");
         configProperties.add(piServerUrl);
 
         ProviderConfigProperty piRealm = new ProviderConfigProperty();
@@ -158,7 +169,8 @@ public class PrivacyIDEAAuthenticatorFactory implements org.keycloak.authenticat
         piIncludeGroups.setName(Const.CONFIG_INCLUDED_GROUPS);
         piIncludeGroups.setLabel("Included groups");
         piIncludeGroups.setHelpText(
-                "Set groups for which the privacyIDEA workflow will be activated. The names should be separated with ',' (E.g. group1,group2)");
+                "Set groups for which the privacyIDEA workflow will be activated. The names should be separated with ',' (E.g. group1,group2). " +
+                "Members of subgroups of these groups are included as well.");
         configProperties.add(piIncludeGroups);
 
         ProviderConfigProperty piExcludeGroups = new ProviderConfigProperty();
@@ -167,7 +179,7 @@ public class PrivacyIDEAAuthenticatorFactory implements org.keycloak.authenticat
         piExcludeGroups.setLabel("Excluded groups");
         piExcludeGroups.setHelpText(
                 "Set groups for which the privacyIDEA workflow will be skipped. The names should be separated with ',' (E.g. group1,group2). " +
-                "If chosen group is already set in 'Included groups', excluding for this group will be ignored.");
+                "Members of subgroups of these groups are excluded as well. If chosen group is already set in 'Included groups', excluding for this group will be ignored.");
         configProperties.add(piExcludeGroups);
 
 
@@ -233,6 +245,103 @@ public class PrivacyIDEAAuthenticatorFactory implements org.keycloak.authenticat
                 "Set the refresh interval for push tokens in seconds. Use a comma separated list. The last entry will be repeated.");
         configProperties.add(piPushTokenInterval);
 
+        ProviderConfigProperty piAdaptivePolling = new ProviderConfigProperty();
+        piAdaptivePolling.setType(ProviderConfigProperty.BOOLEAN_TYPE);
+        piAdaptivePolling.setName(Const.CONFIG_ADAPTIVE_POLLING);
+        piAdaptivePolling.setLabel("Adaptive push refresh interval");
+        piAdaptivePolling.setHelpText("If enabled, the interval to check for push confirmation is learned from the time users of the realm need to " +
+                                      "confirm. Checks are frequent around the usual confirmation time and rare after it. " +
+                                      "The push refresh interval is used until enough confirmations have been seen.");
+        piAdaptivePolling.setDefaultValue("false");
+        configProperties.add(piAdaptivePolling);
+
+        ProviderConfigProperty piAsyncCalls = new ProviderConfigProperty();
+        piAsyncCalls.setType(ProviderConfigProperty.BOOLEAN_TYPE);
+        piAsyncCalls.setName(Const.CONFIG_ASYNC_CALLS);
+        piAsyncCalls.setLabel("Limit privacyIDEA call time");
+        piAsyncCalls.setHelpText("If enabled, requests to privacyIDEA run on a separate bounded thread pool and the login fails if privacyIDEA does " +
+                                 "not answer within the call timeout. This keeps a slow privacyIDEA server from blocking all keycloak threads.");
+        piAsyncCalls.setDefaultValue("false");
+        configProperties.add(piAsyncCalls);
+
+        ProviderConfigProperty piCallTimeout = new ProviderConfigProperty();
+        piCallTimeout.setType(ProviderConfigProperty.STRING_TYPE);
+        piCallTimeout.setName(Const.CONFIG_CALL_TIMEOUT);
+        piCallTimeout.setLabel("Call timeout");
+        piCallTimeout.setHelpText("Time in milliseconds to wait for an answer of privacyIDEA if 'Limit privacyIDEA call time' is enabled. Default is " +
+                                  Const.DEFAULT_CALL_TIMEOUT + ".");
+        configProperties.add(piCallTimeout);
+
+        ProviderConfigProperty piHedging = new ProviderConfigProperty();
+        piHedging.setType(ProviderConfigProperty.BOOLEAN_TYPE);
+        piHedging.setName(Const.CONFIG_HEDGING);
+        piHedging.setLabel("Hedge requests");
+        piHedging.setHelpText("Only used with several privacyIDEA servers. If enabled, checking for push confirmation and loading the token " +
+                              "info are sent to a second server when the first has not answered within the usual time, and the first answer " +
+                              "is used. The requests always run on the bounded thread pool and are limited by the call timeout.");
+        piHedging.setDefaultValue("false");
+        configProperties.add(piHedging);
+
+        ProviderConfigProperty piHedgePercentile = new ProviderConfigProperty();
+        piHedgePercentile.setType(ProviderConfigProperty.STRING_TYPE);
+        piHedgePercentile.setName(Const.CONFIG_HEDGE_PERCENTILE);
+        piHedgePercentile.setLabel("Hedge percentile");
+        piHedgePercentile.setHelpText("A request is hedged if it takes longer than this percentile of the recent latencies. Default is " +
+                                      Const.DEFAULT_HEDGE_PERCENTILE + ". Until enough latencies are known, " +
+                                      Const.DEFAULT_HEDGE_DELAY_MILLIS + "ms are used.");
+        configProperties.add(piHedgePercentile);
+
+        ProviderConfigProperty piCircuitBreaker = new ProviderConfigProperty();
+        piCircuitBreaker.setType(ProviderConfigProperty.BOOLEAN_TYPE);
+        piCircuitBreaker.setName(Const.CONFIG_CIRCUIT_BREAKER);
+        piCircuitBreaker.setLabel("Circuit breaker");
+        piCircuitBreaker.setHelpText("If enabled, requests to a privacyIDEA server that is failing or slow are stopped for the circuit open time, " +
+                                     "so that logins do not wait for it. After that, one request probes if the server is available again.");
+        piCircuitBreaker.setDefaultValue("false");
+        configProperties.add(piCircuitBreaker);
+
+        ProviderConfigProperty piCircuitFailureRate = new ProviderConfigProperty();
+        piCircuitFailureRate.setType(ProviderConfigProperty.STRING_TYPE);
+        piCircuitFailureRate.setName(Const.CONFIG_CIRCUIT_FAILURE_RATE);
+        piCircuitFailureRate.setLabel("Circuit failure rate");
+        piCircuitFailureRate.setHelpText("Percentage of failed or slow requests within the last " + Const.CIRCUIT_WINDOW_SECONDS +
+                                         " seconds at which the circuit opens. Default is " + Const.DEFAULT_CIRCUIT_FAILURE_RATE + ".");
+        configProperties.add(piCircuitFailureRate);
+
+        ProviderConfigProperty piCircuitSlowCall = new ProviderConfigProperty();
+        piCircuitSlowCall.setType(ProviderConfigProperty.STRING_TYPE);
+        piCircuitSlowCall.setName(Const.CONFIG_CIRCUIT_SLOW_CALL);
+        piCircuitSlowCall.setLabel("Circuit slow call time");
+        piCircuitSlowCall.setHelpText("Time in milliseconds after which a request counts as slow. Default is " + Const.DEFAULT_CIRCUIT_SLOW_CALL + ".");
+        configProperties.add(piCircuitSlowCall);
+
+        ProviderConfigProperty piCircuitOpenSeconds = new ProviderConfigProperty();
+        piCircuitOpenSeconds.setType(ProviderConfigProperty.STRING_TYPE);
+        piCircuitOpenSeconds.setName(Const.CONFIG_CIRCUIT_OPEN_SECONDS);
+        piCircuitOpenSeconds.setLabel("Circuit open time");
+        piCircuitOpenSeconds.setHelpText("Time in seconds the circuit stays open before a probe request is sent. Default is " +
+                                         Const.DEFAULT_CIRCUIT_OPEN_SECONDS + ".");
+        configProperties.add(piCircuitOpenSeconds);
+
+        List<String> openPolicies = Arrays.asList("Fail", "Skip groups");
+        ProviderConfigProperty piCircuitOpenPolicy = new ProviderConfigProperty();
+        piCircuitOpenPolicy.setType(ProviderConfigProperty.LIST_TYPE);
+        piCircuitOpenPolicy.setName(Const.CONFIG_CIRCUIT_OPEN_POLICY);
+        piCircuitOpenPolicy.setLabel("Circuit open policy");
+        piCircuitOpenPolicy.setHelpText("Select what happens to logins while the circuit is open. 'Fail' shows an error page. 'Skip groups' lets " +
+                                        "members of the circuit skip groups log in without the second factor, everybody else gets the error page.");
+        piCircuitOpenPolicy.setOptions(openPolicies);
+        piCircuitOpenPolicy.setDefaultValue(openPolicies.get(0));
+        configProperties.add(piCircuitOpenPolicy);
+
+        ProviderConfigProperty piCircuitSkipGroups = new ProviderConfigProperty();
+        piCircuitSkipGroups.setType(ProviderConfigProperty.STRING_TYPE);
+        piCircuitSkipGroups.setName(Const.CONFIG_CIRCUIT_SKIP_GROUPS);
+        piCircuitSkipGroups.setLabel("Circuit skip groups");
+        piCircuitSkipGroups.setHelpText("Set groups which may log in without the second factor while the circuit is open and the policy is " +
+                                        "'Skip groups'. The names should be separated with ','. Members of subgroups are included as well.");
+        configProperties.add(piCircuitSkipGroups);
+
         ProviderConfigProperty piDoLog = new ProviderConfigProperty();
         piDoLog.setType(ProviderConfigProperty.BOOLEAN_TYPE);
         piDoLog.setName(Const.CONFIG_ENABLE_LOG);
@@ -263,15 +372,71 @@ public class PrivacyIDEAAuthenticatorFactory implements org.keycloak.authenticat
     @Override
     public void init(Config.Scope config)
     {
+        SINGLETON.clientCache()
+                 .configure(config.getInt(Const.SPI_CLIENT_CACHE_SIZE, Const.DEFAULT_CLIENT_CACHE_SIZE),
+                            config.getLong(Const.SPI_CLIENT_CACHE_IDLE_MINUTES, Const.DEFAULT_CLIENT_CACHE_IDLE_MINUTES));
+        SINGLETON.groupFilter().configure(config.getLong(Const.SPI_GROUP_CACHE_SECONDS, Const.DEFAULT_GROUP_CACHE_SECONDS));
+        SINGLETON.executor()
+                 .configure(config.getInt(Const.SPI_ASYNC_THREADS, Const.DEFAULT_ASYNC_THREADS),
+                            config.getInt(Const.SPI_ASYNC_QUEUE_SIZE, Const.DEFAULT_ASYNC_QUEUE_SIZE));
+        clusterTransactions = config.getBoolean(Const.SPI_CLUSTER_TRANSACTIONS, true);
+        SINGLETON.tokenInfoCache()
+                 .configure(config.getLong(Const.SPI_TOKEN_CACHE_SECONDS, Const.DEFAULT_TOKEN_CACHE_SECONDS),
+                            config.getLong(Const.SPI_TOKEN_CACHE_NEGATIVE_SECONDS, Const.DEFAULT_TOKEN_CACHE_NEGATIVE_SECONDS),
+                            clusterTransactions);
+        SINGLETON.transport()
+                 .configure(config.getInt(Const.SPI_CONNECTION_POOL_SIZE, Const.DEFAULT_CONNECTION_POOL_SIZE),
+                            config.getLong(Const.SPI_KEEP_ALIVE_SECONDS, Const.DEFAULT_KEEP_ALIVE_SECONDS),
+                            config.getInt(Const.SPI_CONNECT_TIMEOUT, Const.DEFAULT_CONNECT_TIMEOUT),
+                            config.getBoolean(Const.SPI_HTTP2, true));
+        SINGLETON.auditLog()
+                 .configure(config.getBoolean(Const.SPI_AUDIT_LOG, false),
+                            config.getInt(Const.SPI_AUDIT_BUFFER_SIZE, Const.DEFAULT_AUDIT_BUFFER_SIZE),
+                            config.getInt(Const.SPI_AUDIT_SUCCESS_SAMPLE_PERCENT, Const.DEFAULT_AUDIT_SUCCESS_SAMPLE_PERCENT));
+        SINGLETON.tracing().configure(config.getBoolean(Const.SPI_TRACING, false));
+        SINGLETON.metrics().bind(SINGLETON.clientCache());
     }
 
     @Override
     public void postInit(KeycloakSessionFactory factory)
     {
+        if (clusterTransactions)
+        {
+            SINGLETON.pushRegistry().cluster().init(factory);
+        }
+        factory.register(event ->
+                         {
+                             if (event instanceof RealmModel.RealmRemovedEvent)
+                             {
+                                 // Clients of removed realms would otherwise stay in the cache until they are idle
+                                 String realmId = ((RealmModel.RealmRemovedEvent) event).getRealm().getId();
+                                 SINGLETON.clientCache().removeRealm(realmId);
+                                 SINGLETON.tokenInfoCache().removeRealm(realmId);
+                                 SINGLETON.pushRegistry().removeRealm(realmId);
+                                 SINGLETON.groupFilter().clear();
+                             }
+                             else if (event instanceof GroupModel.GroupRemovedEvent || event instanceof GroupModel.GroupPathChangeEvent)
+                             {
+                                 SINGLETON.groupFilter().clear();
+                             }
+                             else if (event instanceof UserModel.UserRemovedEvent)
+                             {
+                                 UserModel.UserRemovedEvent removed = (UserModel.UserRemovedEvent) event;
+                                 SINGLETON.groupFilter().invalidateUser(removed.getUser().getId());
+                                 SINGLETON.tokenInfoCache().invalidate(removed.getRealm().getId(), removed.getUser().getUsername());
+                             }
+                         });
     }
 
     @Override
     public void close()
     {
+        SINGLETON.clientCache().clear();
+        SINGLETON.executor().shutdown();
+        SINGLETON.pushRegistry().shutdown();
+        SINGLETON.challengePrefetch().clear();
+        SINGLETON.transport().close();
+        SINGLETON.auditLog().shutdown();
+        PIEndpointPool.shutdownHealthChecks();
     }
 }
\ No newline at end of file
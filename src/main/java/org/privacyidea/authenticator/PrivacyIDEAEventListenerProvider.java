@@ -0,0 +1,73 @@
+/*
+ * Copyright 2023 NetKnights GmbH - nils.behlen@netknights.it
+ * lukas.matusiewicz@netknights.it
+ * - Modified
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.privacyidea.authenticator;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.admin.AdminEvent;
+
+import static org.privacyidea.authenticator.Const.EVENT_DETAIL_PREFIX;
+
+/**
+ * Passes the login events that carry details of the privacyIDEA authenticator to the exporter.
+ */
+public class PrivacyIDEAEventListenerProvider implements EventListenerProvider
+{
+    private final EventExporter exporter;
+
+    public PrivacyIDEAEventListenerProvider(EventExporter exporter)
+    {
+        this.exporter = exporter;
+    }
+
+    @Override
+    public void onEvent(Event event)
+    {
+        Map<String, String> details = event.getDetails();
+        if (exporter == null || details == null || details.keySet().stream().noneMatch(k -> k.startsWith(EVENT_DETAIL_PREFIX)))
+        {
+            return;
+        }
+        Map<String, Object> export = new LinkedHashMap<>();
+        export.put("time", Instant.ofEpochMilli(event.getTime()).toString());
+        export.put("type", event.getType().name());
+        export.put("realmId", event.getRealmId());
+        export.put("clientId", event.getClientId());
+        export.put("userId", event.getUserId());
+        export.put("ipAddress", event.getIpAddress());
+        if (event.getError() != null)
+        {
+            export.put("error", event.getError());
+        }
+        export.put("details", new LinkedHashMap<>(details));
+        exporter.offer(export);
+    }
+
+    @Override
+    public void onEvent(AdminEvent event, boolean includeRepresentation)
+    {
+    }
+
+    @Override
+    public void close()
+    {
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2023 NetKnights GmbH - nils.behlen@netknights.it
+ * lukas.matusiewicz@netknights.it
+ * - Modified
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.privacyidea.authenticator;
+
+import java.net.URI;
+import java.nio.file.Path;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventListenerProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+public class PrivacyIDEAEventListenerProviderFactory implements EventListenerProviderFactory
+{
+    private final Logger logger = Logger.getLogger(PrivacyIDEAEventListenerProviderFactory.class);
+
+    private EventExporter exporter;
+
+    @Override
+    public String getId()
+    {
+        return Const.EVENT_LISTENER_ID;
+    }
+
+    @Override
+    public EventListenerProvider create(KeycloakSession session)
+    {
+        return new PrivacyIDEAEventListenerProvider(exporter);
+    }
+
+    @Override
+    public void init(Config.Scope config)
+    {
+        String file = config.get(Const.SPI_EVENT_FILE);
+        String url = config.get(Const.SPI_EVENT_URL);
+        if (file == null && url == null)
+        {
+            logger.info("No file or url configured for the privacyIDEA event export, the events are not exported.");
+            return;
+        }
+        exporter = new EventExporter(file == null ? null : Path.of(file), url == null ? null : URI.create(url),
+                                     config.getInt(Const.SPI_EVENT_QUEUE_SIZE, Const.DEFAULT_EVENT_QUEUE_SIZE),
+                                     config.getInt(Const.SPI_EVENT_BATCH_SIZE, Const.DEFAULT_EVENT_BATCH_SIZE),
+                                     config.getLong(Const.SPI_EVENT_FLUSH_SECONDS, Const.DEFAULT_EVENT_FLUSH_SECONDS));
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory)
+    {
+    }
+
+    @Override
+    public void close()
+    {
+        if (exporter != null)
+        {
+            exporter.close();
+        }
+    }
+}
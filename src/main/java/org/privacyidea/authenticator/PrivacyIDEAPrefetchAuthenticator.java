@@ -0,0 +1,88 @@
+/*
+ * Copyright 2023 NetKnights GmbH - nils.behlen@netknights.it
+ * lukas.matusiewicz@netknights.it
+ * - Modified
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.privacyidea.authenticator;
+
+import org.jboss.logging.Logger;
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * Triggers the privacyIDEA challenges as soon as the user is known, e.g. right after the username form, so that SMS or
+ * email are sent while the user enters the password. Never shows a form and always succeeds, the privacyIDEA
+ * authenticator later in the flow takes the result. Its config is found by the alias set in the config of this execution.
+ */
+public class PrivacyIDEAPrefetchAuthenticator implements org.keycloak.authentication.Authenticator
+{
+    private final Logger logger = Logger.getLogger(PrivacyIDEAPrefetchAuthenticator.class);
+
+    private final PrivacyIDEAAuthenticator authenticator;
+
+    PrivacyIDEAPrefetchAuthenticator(PrivacyIDEAAuthenticator authenticator)
+    {
+        this.authenticator = authenticator;
+    }
+
+    @Override
+    public void authenticate(AuthenticationFlowContext context)
+    {
+        AuthenticatorConfigModel prefetchConfig = context.getAuthenticatorConfig();
+        String alias = prefetchConfig == null ? null : prefetchConfig.getConfig().get(Const.CONFIG_PREFETCH_CONFIG_ALIAS);
+        AuthenticatorConfigModel configModel = alias == null || alias.isEmpty() ? null : context.getRealm().getAuthenticatorConfigByAlias(alias);
+        if (configModel == null)
+        {
+            logger.warn("No privacyIDEA configuration with alias " + alias + " found for kc-realm " + context.getRealm().getName() +
+                        ", skipping the prefetch.");
+        }
+        else if (context.getUser() != null)
+        {
+            authenticator.prefetchChallenges(context, configModel);
+        }
+        context.success();
+    }
+
+    @Override
+    public void action(AuthenticationFlowContext context)
+    {
+        context.success();
+    }
+
+    @Override
+    public boolean requiresUser()
+    {
+        return true;
+    }
+
+    @Override
+    public boolean configuredFor(KeycloakSession session, RealmModel realm, UserModel user)
+    {
+        return true;
+    }
+
+    @Override
+    public void setRequiredActions(KeycloakSession session, RealmModel realm, UserModel user)
+    {
+    }
+
+    @Override
+    public void close()
+    {
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2023 NetKnights GmbH - nils.behlen@netknights.it
+ * lukas.matusiewicz@netknights.it
+ * - Modified
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.privacyidea.authenticator;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.keycloak.Config;
+import org.keycloak.models.AuthenticationExecutionModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.provider.ProviderConfigProperty;
+
+public class PrivacyIDEAPrefetchAuthenticatorFactory implements org.keycloak.authentication.AuthenticatorFactory, org.keycloak.authentication.ConfigurableAuthenticatorFactory
+{
+    private static final List<ProviderConfigProperty> configProperties = new ArrayList<>();
+
+    private PrivacyIDEAPrefetchAuthenticator authenticator;
+
+    @Override
+    public String getId()
+    {
+        return Const.PREFETCH_PROVIDER_ID;
+    }
+
+    @Override
+    public org.keycloak.authentication.Authenticator create(KeycloakSession session)
+    {
+        return authenticator;
+    }
+
+    private static final AuthenticationExecutionModel.Requirement[] REQUIREMENT_CHOICES = {AuthenticationExecutionModel.Requirement.REQUIRED,
+                                                                                           AuthenticationExecutionModel.Requirement.DISABLED};
+
+    @Override
+    public AuthenticationExecutionModel.Requirement[] getRequirementChoices()
+    {
+        return REQUIREMENT_CHOICES;
+    }
+
+    @Override
+    public boolean isUserSetupAllowed()
+    {
+        return false;
+    }
+
+    @Override
+    public boolean isConfigurable()
+    {
+        return true;
+    }
+
+    @Override
+    public List<ProviderConfigProperty> getConfigProperties()
+    {
+        return configProperties;
+    }
+
+    static
+    {
+        ProviderConfigProperty piPrefetchConfig = new ProviderConfigProperty();
+        piPrefetchConfig.setType(ProviderConfigProperty.STRING_TYPE);
+        piPrefetchConfig.setName(Const.CONFIG_PREFETCH_CONFIG_ALIAS);
+        piPrefetchConfig.setLabel("privacyIDEA config alias");
+        piPrefetchConfig.setHelpText("Alias of the config of the privacyIDEA execution later in this flow. Its challenges are triggered " +
+                                     "as soon as the user is known. Only used if trigger challenge is enabled in that config.");
+        configProperties.add(piPrefetchConfig);
+    }
+
+    @Override
+    public String getHelpText()
+    {
+        return "Trigger the privacyIDEA challenges right after the username is known, while the user enters the password.";
+    }
+
+    @Override
+    public String getDisplayType()
+    {
+        return "privacyIDEA challenge prefetch";
+    }
+
+    @Override
+    public String getReferenceCategory()
+    {
+        return "privacyIDEA";
+    }
+
+    @Override
+    public void init(Config.Scope config)
+    {
+        authenticator = new PrivacyIDEAPrefetchAuthenticator(PrivacyIDEAAuthenticatorFactory.authenticator());
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory)
+    {
+    }
+
+    @Override
+    public void close()
+    {
+    }
+}
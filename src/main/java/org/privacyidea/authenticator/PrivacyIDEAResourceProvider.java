@@ -0,0 +1,192 @@
+/*
+ * Copyright 2023 NetKnights GmbH - nils.behlen@netknights.it
+ * lukas.matusiewicz@netknights.it
+ * - Modified
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.privacyidea.authenticator;
+
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.FormParam;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.container.AsyncResponse;
+import jakarta.ws.rs.container.Suspended;
+import jakarta.ws.rs.core.CacheControl;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.managers.AuthenticationSessionManager;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.keycloak.sessions.RootAuthenticationSessionModel;
+
+import static org.privacyidea.authenticator.Const.AUTH_NOTE_POLL_TOKEN;
+import static org.privacyidea.authenticator.Const.AUTH_NOTE_TRANSACTION_ID;
+import static org.privacyidea.authenticator.Const.DEFAULT_LONG_POLL_TIMEOUT_SECONDS;
+
+/**
+ * REST endpoints of the provider, available at /realms/{realm}/privacyidea/.
+ */
+public class PrivacyIDEAResourceProvider implements RealmResourceProvider
+{
+    private static final String STATUS_CONFIRMED = "{\"status\":\"confirmed\"}";
+    private static final String STATUS_PENDING = "{\"status\":\"pending\"}";
+
+    private final KeycloakSession session;
+    private final PushTransactionRegistry pushRegistry;
+    private final TokenInfoCache tokenInfoCache;
+    private final String webhookSecret;
+
+    PrivacyIDEAResourceProvider(KeycloakSession session, PushTransactionRegistry pushRegistry, TokenInfoCache tokenInfoCache,
+                                String webhookSecret)
+    {
+        this.session = session;
+        this.pushRegistry = pushRegistry;
+        this.tokenInfoCache = tokenInfoCache;
+        this.webhookSecret = webhookSecret;
+    }
+
+    @Override
+    public Object getResource()
+    {
+        return this;
+    }
+
+    /**
+     * Long-poll for the confirmation of the push transaction of an authentication session. Answers as soon as the
+     * transaction is confirmed, or with status pending after the long-poll timeout. The request has to come with the
+     * cookie of the authentication session, and the tab and token of the poll URL in the form. The transaction is taken
+     * from the session. Unknown sessions and transactions are answered with 404, so that the browser can fall back to
+     * reloading the form.
+     *
+     * @param tabId         tab of the authentication session
+     * @param token         poll token of the authentication session
+     * @param asyncResponse the suspended response
+     */
+    @GET
+    @Path("poll/{tabId}/{token}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public void poll(@PathParam("tabId") String tabId, @PathParam("token") String token, @Suspended AsyncResponse asyncResponse)
+    {
+        RealmModel realm = session.getContext().getRealm();
+        String transactionID = realm == null ? null : ownTransaction(realm, tabId, token);
+        PushTransactionRegistry.Transaction transaction = transactionID == null ? null : pushRegistry.find(session, transactionID, realm);
+        if (transaction == null)
+        {
+            asyncResponse.resume(Response.status(Response.Status.NOT_FOUND).build());
+            return;
+        }
+
+        AtomicReference<Runnable> cancel = new AtomicReference<>();
+        asyncResponse.setTimeout(DEFAULT_LONG_POLL_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        asyncResponse.setTimeoutHandler(ar ->
+                                        {
+                                            // Do not leave the callback of this request on the transaction
+                                            Runnable c = cancel.get();
+                                            if (c != null)
+                                            {
+                                                c.run();
+                                            }
+                                            ar.resume(status(STATUS_PENDING));
+                                        });
+        cancel.set(pushRegistry.onConfirmed(transaction, () -> asyncResponse.resume(status(STATUS_CONFIRMED))));
+    }
+
+    /**
+     * @return the push transaction of the authentication session of the request, null if the session, tab or token
+     * do not match
+     */
+    private String ownTransaction(RealmModel realm, String tabId, String token)
+    {
+        RootAuthenticationSessionModel root = new AuthenticationSessionManager(session).getCurrentRootAuthenticationSession(realm);
+        AuthenticationSessionModel authSession = root == null ? null : root.getAuthenticationSessions().get(tabId);
+        if (authSession == null)
+        {
+            return null;
+        }
+        String expected = authSession.getAuthNote(AUTH_NOTE_POLL_TOKEN);
+        if (expected == null || token == null ||
+            !MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8)))
+        {
+            return null;
+        }
+        return authSession.getAuthNote(AUTH_NOTE_TRANSACTION_ID);
+    }
+
+    /**
+     * Webhook for the privacyIDEA event handler, to be called when the tokens of a user change, e.g. after token_init or
+     * token_delete. The cached token state of the user is removed on all nodes, so the next login asks privacyIDEA again. The webhook
+     * is only available if a secret is configured, which has to be sent with the request.
+     *
+     * @param user   name of the user whose tokens changed
+     * @param secret the configured webhook secret
+     * @return 204 if the user was invalidated, 403 for a wrong secret, 404 if the webhook is disabled
+     */
+    @POST
+    @Path("tokens")
+    @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+    public Response tokensChanged(@FormParam("user") String user, @FormParam("secret") String secret)
+    {
+        RealmModel realm = session.getContext().getRealm();
+        if (webhookSecret == null || webhookSecret.isEmpty() || realm == null)
+        {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        if (secret == null || !MessageDigest.isEqual(webhookSecret.getBytes(StandardCharsets.UTF_8), secret.getBytes(StandardCharsets.UTF_8)))
+        {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+        if (user == null || user.isEmpty())
+        {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        tokenInfoCache.invalidate(session, realm.getId(), user);
+        return Response.noContent().build();
+    }
+
+    /**
+     * Same as {@link #tokensChanged(String, String)} for webhooks that send JSON.
+     */
+    @POST
+    @Path("tokens")
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response tokensChangedJson(Map<String, Object> body)
+    {
+        Object user = body == null ? null : body.get("user");
+        Object secret = body == null ? null : body.get("secret");
+        return tokensChanged(user == null ? null : user.toString(), secret == null ? null : secret.toString());
+    }
+
+    private static Response status(String body)
+    {
+        CacheControl cacheControl = new CacheControl();
+        cacheControl.setNoStore(true);
+        return Response.ok(body, MediaType.APPLICATION_JSON_TYPE).cacheControl(cacheControl).build();
+    }
+
+    @Override
+    public void close()
+    {
+    }
+}
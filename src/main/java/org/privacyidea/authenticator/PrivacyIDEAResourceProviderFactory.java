@@ -0,0 +1,58 @@
+/*
+ * Copyright 2023 NetKnights GmbH - nils.behlen@netknights.it
+ * lukas.matusiewicz@netknights.it
+ * - Modified
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.privacyidea.authenticator;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resource.RealmResourceProviderFactory;
+
+public class PrivacyIDEAResourceProviderFactory implements RealmResourceProviderFactory
+{
+    private String webhookSecret;
+
+    @Override
+    public String getId()
+    {
+        return Const.RESOURCE_PROVIDER_ID;
+    }
+
+    @Override
+    public RealmResourceProvider create(KeycloakSession session)
+    {
+        PrivacyIDEAAuthenticator authenticator = PrivacyIDEAAuthenticatorFactory.authenticator();
+        return new PrivacyIDEAResourceProvider(session, authenticator.pushRegistry(), authenticator.tokenInfoCache(), webhookSecret);
+    }
+
+    @Override
+    public void init(Config.Scope config)
+    {
+        webhookSecret = config.get(Const.SPI_WEBHOOK_SECRET);
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory)
+    {
+    }
+
+    @Override
+    public void close()
+    {
+    }
+}
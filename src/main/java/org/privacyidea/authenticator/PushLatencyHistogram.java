@@ -0,0 +1,123 @@
+/*
+ * Copyright 2023 NetKnights GmbH - nils.behlen@netknights.it
+ * lukas.matusiewicz@netknights.it
+ * - Modified
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.privacyidea.authenticator;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static org.privacyidea.authenticator.Const.ADAPTIVE_POLL_MIN_SAMPLES;
+import static org.privacyidea.authenticator.Const.ADAPTIVE_POLL_QUANTILE_STEP;
+import static org.privacyidea.authenticator.Const.PUSH_POLL_MAX_INTERVAL_SECONDS;
+
+/**
+ * Online histogram of the time users need to approve a push, in buckets of one second. It is used to poll densely
+ * while most approvals happen and to back off in the tail. Old samples are halved regularly, so the histogram follows
+ * changes in user behavior.
+ */
+final class PushLatencyHistogram
+{
+    private static final int BUCKETS = 120;
+    private static final long DECAY_THRESHOLD = 10000;
+
+    // Bucket i counts approvals after i to i+1 seconds, the last bucket counts everything slower
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * Record the time between triggering a push and seeing it confirmed.
+     *
+     * @param latencyMillis approval latency
+     */
+    void record(long latencyMillis)
+    {
+        int bucket = (int) Math.min(BUCKETS - 1, Math.max(0, latencyMillis / 1000));
+        buckets.incrementAndGet(bucket);
+        if (count.incrementAndGet() > DECAY_THRESHOLD)
+        {
+            decay();
+        }
+    }
+
+    private synchronized void decay()
+    {
+        if (count.get() <= DECAY_THRESHOLD)
+        {
+            return;
+        }
+        long sum = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            long v;
+            do
+            {
+                v = buckets.get(i);
+            }
+            while (!buckets.compareAndSet(i, v, v / 2));
+            sum += v / 2;
+        }
+        count.set(sum);
+    }
+
+    /**
+     * Get the next polling interval for a push that has been waiting for elapsedMillis. The next poll is placed where
+     * the next share of approvals is expected, so that intervals are short around the common approval times and long
+     * in the tail.
+     *
+     * @param elapsedMillis time since the push was triggered
+     * @return the interval in seconds, or -1 if there are not enough samples yet
+     */
+    int nextInterval(long elapsedMillis)
+    {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        if (total < ADAPTIVE_POLL_MIN_SAMPLES)
+        {
+            return -1;
+        }
+
+        int elapsedBucket = (int) Math.min(BUCKETS - 1, elapsedMillis / 1000);
+        long done = 0;
+        for (int i = 0; i < elapsedBucket; i++)
+        {
+            done += snapshot[i];
+        }
+        long target = done + Math.max(1, Math.round(total * ADAPTIVE_POLL_QUANTILE_STEP));
+
+        long cumulative = done;
+        for (int i = elapsedBucket; i < BUCKETS; i++)
+        {
+            cumulative += snapshot[i];
+            if (cumulative >= target)
+            {
+                return clamp(i + 1 - elapsedBucket);
+            }
+        }
+        // Beyond all observed approvals
+        return PUSH_POLL_MAX_INTERVAL_SECONDS;
+    }
+
+    private static int clamp(int seconds)
+    {
+        return Math.max(1, Math.min(PUSH_POLL_MAX_INTERVAL_SECONDS, seconds));
+    }
+}
@@ -0,0 +1,495 @@
+/*
+ * Copyright 2023 NetKnights GmbH - nils.behlen@netknights.it
+ * lukas.matusiewicz@netknights.it
+ * - Modified
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.privacyidea.authenticator;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import org.jboss.logging.Logger;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import static org.privacyidea.authenticator.Const.DEFAULT_LONG_POLL_TIMEOUT_SECONDS;
+import static org.privacyidea.authenticator.Const.PUSH_POLLER_THREADS;
+import static org.privacyidea.authenticator.Const.PUSH_POLLER_TICK_MILLIS;
+import static org.privacyidea.authenticator.Const.PUSH_POLL_BACKOFF_FACTOR;
+import static org.privacyidea.authenticator.Const.PUSH_POLL_LEASE_SECONDS;
+import static org.privacyidea.authenticator.Const.PUSH_POLL_MAX_INTERVAL_SECONDS;
+import static org.privacyidea.authenticator.Const.PUSH_TRANSACTION_LIFESPAN_MINUTES;
+import static org.privacyidea.authenticator.Const.PUSH_TRANSACTION_MAX_PENDING;
+
+/**
+ * Pending push transactions of this node. All transactions that somebody is waiting for, either the long-poll endpoint or a
+ * submitted login form, are polled by one shared scheduler. Each transaction has at most one poll in flight and backs off
+ * after the configured polling intervals are used up. Waiting requests read the cached result instead of asking privacyIDEA.
+ * <p>
+ * The transactions are also kept in the {@link ClusterTransactionStore}. A node that is asked for a transaction of another
+ * node takes it over from there, and a transaction confirmed by one node is not polled again by the others. The node that
+ * holds the lease of a transaction polls privacyIDEA, the others only read the state until the lease expires.
+ */
+final class PushTransactionRegistry
+{
+    private final Logger logger = Logger.getLogger(PushTransactionRegistry.class);
+
+    private final PIMetrics metrics;
+    private final BiFunction<RealmModel, AuthenticatorConfigModel, Pair> loader;
+    private final Function<String, Pair> clients;
+    private final ClusterTransactionStore cluster = new ClusterTransactionStore();
+    private final ConcurrentHashMap<String, Transaction> transactions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, PushLatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private volatile ScheduledExecutorService scheduler;
+    private volatile ExecutorService pollers;
+
+    /**
+     * @param metrics metrics of the provider
+     * @param loader  gets the client and configuration of a config, used for transactions taken over from another node
+     * @param clients gets the current client and configuration of a config id without building it, null if there is none
+     */
+    PushTransactionRegistry(PIMetrics metrics, BiFunction<RealmModel, AuthenticatorConfigModel, Pair> loader,
+                            Function<String, Pair> clients)
+    {
+        this.metrics = metrics;
+        this.loader = loader;
+        this.clients = clients;
+    }
+
+    static final class Transaction
+    {
+        private final String transactionID;
+        private final String realmId;
+        private final String realmName;
+        private final String configId;
+        private final Configuration configuration;
+        private final long created;
+        private final CompletableFuture<Boolean> confirmed = new CompletableFuture<>();
+        // Long polls waiting for the confirmation, each is removed when its request ends
+        private final Set<Runnable> waiters = ConcurrentHashMap.newKeySet();
+        private final AtomicBoolean inFlight = new AtomicBoolean();
+        private int pollCount;
+        // Whether this node holds the polling lease, and when to renew or retry it
+        private boolean leaseHolder;
+        private long leaseUntil;
+        private volatile long nextPoll;
+        private volatile long lastWaiter;
+
+        private Transaction(String transactionID, String realmId, String realmName, String configId, Configuration configuration,
+                            long created)
+        {
+            this.transactionID = transactionID;
+            this.realmId = realmId;
+            this.realmName = realmName;
+            this.configId = configId;
+            this.configuration = configuration;
+            this.created = created;
+            this.nextPoll = created + TimeUnit.SECONDS.toMillis(configuration.pollingInterval().get(0));
+        }
+
+        boolean isConfirmed()
+        {
+            return confirmed.getNow(false);
+        }
+    }
+
+    ClusterTransactionStore cluster()
+    {
+        return cluster;
+    }
+
+    /**
+     * Register a transaction for which a push token was triggered.
+     *
+     * @param session       session of the current request
+     * @param transactionID transaction id returned by privacyIDEA
+     * @param realm         the keycloak realm
+     * @param configId      id of the AuthenticatorConfigModel the transaction was triggered with
+     * @param username      user the transaction belongs to
+     * @param tokenTypes    token types that were triggered
+     * @param pair          privacyIDEA client and configuration the transaction was triggered with
+     */
+    void register(KeycloakSession session, String transactionID, RealmModel realm, String configId, String username, List<String> tokenTypes, Pair pair)
+    {
+        if (!hasCapacity(transactionID))
+        {
+            return;
+        }
+        Transaction t = new Transaction(transactionID, realm.getId(), realm.getName(), configId, pair.configuration(),
+                                        System.currentTimeMillis());
+        if (transactions.putIfAbsent(transactionID, t) == null)
+        {
+            cluster.put(session, transactionID, realm.getId(), configId, username, tokenTypes, t.created,
+                        TimeUnit.MINUTES.toSeconds(PUSH_TRANSACTION_LIFESPAN_MINUTES));
+        }
+    }
+
+    /**
+     * Get the transaction of this node, or take it over from the cluster state if it was registered by another node.
+     *
+     * @param session       session of the current request
+     * @param transactionID transaction id
+     * @param realm         realm of the current request, transactions of other realms are not returned
+     * @return the transaction, null if it is unknown or expired
+     */
+    Transaction find(KeycloakSession session, String transactionID, RealmModel realm)
+    {
+        Transaction t = get(transactionID);
+        if (t != null || transactionID == null)
+        {
+            if (t == null || !t.realmId.equals(realm.getId()))
+            {
+                return null;
+            }
+            if (clients.apply(t.configId) == null)
+            {
+                // The client was evicted while the user confirms, build it again for the poller
+                AuthenticatorConfigModel configModel = realm.getAuthenticatorConfigById(t.configId);
+                if (configModel != null)
+                {
+                    loader.apply(realm, configModel);
+                }
+            }
+            return t;
+        }
+
+        Map<String, String> state = cluster.get(session, transactionID);
+        if (state == null || !realm.getId().equals(state.get(ClusterTransactionStore.REALM)))
+        {
+            return null;
+        }
+        AuthenticatorConfigModel configModel = realm.getAuthenticatorConfigById(state.get(ClusterTransactionStore.CONFIG));
+        if (configModel == null || !hasCapacity(transactionID))
+        {
+            return null;
+        }
+        long created;
+        try
+        {
+            created = Long.parseLong(state.get(ClusterTransactionStore.CREATED));
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+        Transaction adopted = new Transaction(transactionID, realm.getId(), realm.getName(), configModel.getId(),
+                                              loader.apply(realm, configModel).configuration(), created);
+        if (ClusterTransactionStore.STATE_CONFIRMED.equals(state.get(ClusterTransactionStore.STATE)))
+        {
+            confirmed(adopted);
+        }
+        if (isExpired(adopted, System.currentTimeMillis()))
+        {
+            return null;
+        }
+        Transaction existing = transactions.putIfAbsent(transactionID, adopted);
+        return existing != null ? existing : adopted;
+    }
+
+    private boolean hasCapacity(String transactionID)
+    {
+        if (transactions.size() >= PUSH_TRANSACTION_MAX_PENDING)
+        {
+            removeExpired();
+            if (transactions.size() >= PUSH_TRANSACTION_MAX_PENDING)
+            {
+                logger.warn("Too many pending push transactions, long polling is not available for " + transactionID);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    Transaction get(String transactionID)
+    {
+        if (transactionID == null)
+        {
+            return null;
+        }
+        Transaction t = transactions.get(transactionID);
+        if (t != null && isExpired(t, System.currentTimeMillis()))
+        {
+            transactions.remove(transactionID);
+            return null;
+        }
+        return t;
+    }
+
+    /**
+     * @param session       session of the current request
+     * @param transactionID transaction to forget on all nodes
+     */
+    void remove(KeycloakSession session, String transactionID)
+    {
+        if (transactionID != null)
+        {
+            transactions.remove(transactionID);
+            cluster.remove(session, transactionID);
+        }
+    }
+
+    /**
+     * Mark the transaction as waited for, so that the shared poller keeps polling it.
+     *
+     * @param t the transaction
+     * @return future that is completed with true once the transaction is confirmed
+     */
+    CompletableFuture<Boolean> await(Transaction t)
+    {
+        t.lastWaiter = System.currentTimeMillis();
+        scheduler();
+        return t.confirmed;
+    }
+
+    /**
+     * Run the callback once the transaction is confirmed, right away if it already is. The callback is dropped if the
+     * returned handle is run first, e.g. when the long poll times out.
+     *
+     * @param t        the transaction
+     * @param callback runs on the poller thread that saw the confirmation
+     * @return removes the callback
+     */
+    Runnable onConfirmed(Transaction t, Runnable callback)
+    {
+        await(t);
+        t.waiters.add(callback);
+        // The confirmation may have run the waiters between the check of the caller and the add
+        if (t.confirmed.isDone() && t.waiters.remove(callback))
+        {
+            callback.run();
+        }
+        return () -> t.waiters.remove(callback);
+    }
+
+    private static void confirmed(Transaction t)
+    {
+        t.confirmed.complete(true);
+        for (Runnable waiter : t.waiters)
+        {
+            // Whoever removes the waiter runs it, so it runs once
+            if (t.waiters.remove(waiter))
+            {
+                waiter.run();
+            }
+        }
+    }
+
+    /**
+     * Runs on the shared schedule. Dispatches a poll for every transaction that is due, has a waiter and no poll in flight.
+     */
+    private void tick()
+    {
+        long now = System.currentTimeMillis();
+        long waiterTimeout = TimeUnit.SECONDS.toMillis(DEFAULT_LONG_POLL_TIMEOUT_SECONDS * 2L);
+        Iterator<Transaction> it = transactions.values().iterator();
+        while (it.hasNext())
+        {
+            Transaction t = it.next();
+            if (isExpired(t, now))
+            {
+                it.remove();
+                continue;
+            }
+            if (t.confirmed.isDone() || now < t.nextPoll || now - t.lastWaiter > waiterTimeout)
+            {
+                continue;
+            }
+            if (t.inFlight.compareAndSet(false, true))
+            {
+                try
+                {
+                    pollers.execute(() -> poll(t));
+                }
+                catch (RejectedExecutionException e)
+                {
+                    t.inFlight.set(false);
+                }
+            }
+        }
+    }
+
+    private void poll(Transaction t)
+    {
+        long interval = nextInterval(t);
+        try
+        {
+            long now = System.currentTimeMillis();
+            if (now >= t.leaseUntil)
+            {
+                // Claimed once per lease, not per poll. The lease of a node that went away expires and is taken over.
+                t.leaseHolder = cluster.claim(t.transactionID, PUSH_POLL_LEASE_SECONDS);
+                t.leaseUntil = now + TimeUnit.SECONDS.toMillis(PUSH_POLL_LEASE_SECONDS);
+            }
+            if (!t.leaseHolder)
+            {
+                // Another node polls, its result is read from the cluster state
+                Map<String, String> state = cluster.get(null, t.transactionID);
+                if (state != null && ClusterTransactionStore.STATE_CONFIRMED.equals(state.get(ClusterTransactionStore.STATE)))
+                {
+                    confirmed(t);
+                }
+                return;
+            }
+
+            // Always poll with the current client of the config, the one the transaction was triggered with may be retired
+            Pair pair = clients.apply(t.configId);
+            if (pair == null)
+            {
+                // Evicted, the next request for the transaction builds it again
+                return;
+            }
+            PIEndpointPool pool = pair.pool();
+            PIEndpointPool.Endpoint endpoint = pool.acquire(t.transactionID);
+            if (metrics.time("validate/polltransaction", t.realmName, () -> pool.execute(endpoint, p -> p.pollTransaction(t.transactionID))))
+            {
+                latency(t.realmId).record(System.currentTimeMillis() - t.created);
+                confirmed(t);
+                cluster.confirm(t.transactionID);
+                return;
+            }
+        }
+        catch (CircuitBreaker.OpenException e)
+        {
+            // Try again after the next interval, the login form shows the error if it is still open then
+        }
+        catch (RuntimeException e)
+        {
+            logger.warn("Polling transaction " + t.transactionID + " failed: " + e.getMessage());
+        }
+        finally
+        {
+            t.nextPoll = System.currentTimeMillis() + interval;
+            t.inFlight.set(false);
+        }
+    }
+
+    /**
+     * With adaptive polling, take the interval from the approval latencies of the realm once enough are known.
+     * Otherwise, use the configured polling intervals first. When they are used up, back off from the last one up to the maximum.
+     */
+    private long nextInterval(Transaction t)
+    {
+        List<Integer> intervals = t.configuration.pollingInterval();
+        int count = ++t.pollCount;
+        int adaptive = adaptiveInterval(t);
+        if (adaptive > 0)
+        {
+            return TimeUnit.SECONDS.toMillis(adaptive);
+        }
+        if (count < intervals.size())
+        {
+            return TimeUnit.SECONDS.toMillis(intervals.get(count));
+        }
+        double backoff = intervals.get(intervals.size() - 1) * Math.pow(PUSH_POLL_BACKOFF_FACTOR, count - intervals.size() + 1);
+        return TimeUnit.SECONDS.toMillis(Math.round(Math.min(backoff, PUSH_POLL_MAX_INTERVAL_SECONDS)));
+    }
+
+    /**
+     * Get the next polling interval for the transaction from the approval latencies of its realm.
+     *
+     * @param t the transaction
+     * @return the interval in seconds, or -1 if adaptive polling is disabled or there are not enough samples yet
+     */
+    int adaptiveInterval(Transaction t)
+    {
+        if (!t.configuration.adaptivePolling())
+        {
+            return -1;
+        }
+        return latency(t.realmId).nextInterval(System.currentTimeMillis() - t.created);
+    }
+
+    private PushLatencyHistogram latency(String realmId)
+    {
+        return latencies.computeIfAbsent(realmId, k -> new PushLatencyHistogram());
+    }
+
+    private boolean isExpired(Transaction t, long now)
+    {
+        return now - t.created > TimeUnit.MINUTES.toMillis(PUSH_TRANSACTION_LIFESPAN_MINUTES);
+    }
+
+    private void removeExpired()
+    {
+        long now = System.currentTimeMillis();
+        transactions.values().removeIf(t -> isExpired(t, now));
+    }
+
+    private void scheduler()
+    {
+        if (scheduler == null)
+        {
+            synchronized (this)
+            {
+                if (scheduler == null)
+                {
+                    pollers = Executors.newFixedThreadPool(PUSH_POLLER_THREADS, daemonThreads("privacyidea-push-poll-"));
+                    ScheduledExecutorService s = Executors.newSingleThreadScheduledExecutor(daemonThreads("privacyidea-push-scheduler-"));
+                    s.scheduleWithFixedDelay(this::tick, PUSH_POLLER_TICK_MILLIS, PUSH_POLLER_TICK_MILLIS, TimeUnit.MILLISECONDS);
+                    scheduler = s;
+                }
+            }
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String prefix)
+    {
+        AtomicInteger count = new AtomicInteger();
+        return r ->
+        {
+            Thread thread = new Thread(r, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Forget the pending transactions and the approval latencies of the realm, e.g. because the realm has been removed.
+     *
+     * @param realmId id of the realm
+     */
+    void removeRealm(String realmId)
+    {
+        transactions.values().removeIf(t -> t.realmId.equals(realmId));
+        latencies.remove(realmId);
+    }
+
+    synchronized void shutdown()
+    {
+        if (scheduler != null)
+        {
+            scheduler.shutdownNow();
+            pollers.shutdownNow();
+            scheduler = null;
+            pollers = null;
+        }
+        transactions.clear();
+        cluster.disable();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2023 NetKnights GmbH - nils.behlen@netknights.it
+ * lukas.matusiewicz@netknights.it
+ * - Modified
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.privacyidea.authenticator;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import org.jboss.logging.Logger;
+import org.privacyidea.PrivacyIDEA;
+
+/**
+ * Reference counted privacyIDEA clients, shared by all endpoint pools that connect to the same server with the same
+ * service account. The client authenticates the service account itself and keeps its session and connections internally,
+ * so sharing the client means realms and configurations with the same account do not authenticate separately. It also
+ * keeps the client alive when a config is edited in a way that does not change the connection: the new pool takes a
+ * reference before the old one is closed. The circuit breakers are kept here per server URL for the same reason.
+ */
+final class SharedClients
+{
+    private final Logger logger = Logger.getLogger(SharedClients.class);
+
+    private final Map<List<Object>, Entry> entries = new HashMap<>();
+    private final IdentityHashMap<PrivacyIDEA, Entry> byClient = new IdentityHashMap<>();
+    private final ConcurrentHashMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    private static final class Entry
+    {
+        private final List<Object> key;
+        private final PrivacyIDEA client;
+        private int references;
+
+        private Entry(List<Object> key, PrivacyIDEA client)
+        {
+            this.key = key;
+            this.client = client;
+        }
+    }
+
+    /**
+     * Get the client for the server and the connection settings of the configuration. If there is none yet, it is
+     * created with the factory. Concurrent requests for the same client wait for the one that creates it.
+     *
+     * @param config  configuration with the connection settings
+     * @param url     URL of the server
+     * @param factory creates the client
+     * @return the client, which has to be given back with {@link #release}
+     */
+    synchronized PrivacyIDEA acquire(Configuration config, String url, Supplier<PrivacyIDEA> factory)
+    {
+        List<Object> key = Arrays.asList(url, config.sslVerify(), config.realm(), config.serviceAccountName(),
+                                         config.serviceAccountPass(), config.serviceAccountRealm(),
+                                         config.asyncCalls() ? config.callTimeout() : 0,
+                                         config.doLog());
+        Entry entry = entries.get(key);
+        if (entry == null)
+        {
+            entry = new Entry(key, factory.get());
+            entries.put(key, entry);
+            byClient.put(entry.client, entry);
+        }
+        entry.references++;
+        return entry.client;
+    }
+
+    /**
+     * Get the circuit breaker of a server. All pools of the server use the same one, so its state is kept when a pool is
+     * rebuilt because its configuration changed. It is removed with the last client of the server.
+     *
+     * @param url URL of the server
+     * @return the circuit breaker
+     */
+    CircuitBreaker circuitBreaker(String url)
+    {
+        return breakers.computeIfAbsent(url, CircuitBreaker::new);
+    }
+
+    /**
+     * Give back a client returned by {@link #acquire}. The client is closed when it is not used anymore.
+     */
+    void release(PrivacyIDEA client)
+    {
+        synchronized (this)
+        {
+            Entry entry = byClient.get(client);
+            if (entry == null || --entry.references > 0)
+            {
+                return;
+            }
+            byClient.remove(client);
+            entries.remove(entry.key);
+            Object url = entry.key.get(0);
+            if (entries.keySet().stream().noneMatch(k -> url.equals(k.get(0))))
+            {
+                breakers.remove(url);
+            }
+        }
+        // Close outside the lock, shutting down a client can take a moment
+        try
+        {
+            client.close();
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to close privacyIDEA client: " + e.getMessage());
+        }
+    }
+
+    synchronized int size()
+    {
+        return entries.size();
+    }
+}
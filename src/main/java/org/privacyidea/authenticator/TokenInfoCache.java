@@ -0,0 +1,193 @@
+/*
+ * Copyright 2023 NetKnights GmbH - nils.behlen@netknights.it
+ * lukas.matusiewicz@netknights.it
+ * - Modified
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.privacyidea.authenticator;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.keycloak.common.util.SecretGenerator;
+import org.keycloak.models.KeycloakSession;
+
+import static org.privacyidea.authenticator.Const.DEFAULT_TOKEN_CACHE_NEGATIVE_SECONDS;
+import static org.privacyidea.authenticator.Const.DEFAULT_TOKEN_CACHE_SECONDS;
+import static org.privacyidea.authenticator.Const.TOKEN_CACHE_MAX_SIZE;
+
+/**
+ * Remembers whether a user has tokens in privacyIDEA, so that the token enrollment does not list the tokens of the user
+ * on every login. Users with tokens are cached longer than users without, because they usually keep them. The entry of a
+ * user is replaced after a successful enrollment and removed when privacyIDEA reports a token change to the webhook.
+ * Tokens that are removed in privacyIDEA without a webhook are noticed when the entry expires.
+ * <p>
+ * The webhook only reaches one node of a cluster. If shared invalidation is enabled, it also stores a new version for the
+ * user in keycloak's single-use object store, which is replicated to all nodes. Each entry remembers the version it was
+ * loaded with, and an entry whose version is no longer the current one is not used.
+ */
+final class TokenInfoCache
+{
+    private static final String VERSION_PREFIX = "privacyidea.tokens.";
+    private static final String VERSION = "version";
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile long ttlMillis = TimeUnit.SECONDS.toMillis(DEFAULT_TOKEN_CACHE_SECONDS);
+    private volatile long negativeTtlMillis = TimeUnit.SECONDS.toMillis(DEFAULT_TOKEN_CACHE_NEGATIVE_SECONDS);
+    private volatile boolean shared;
+
+    private static final class Entry
+    {
+        private final Configuration config;
+        private final boolean hasTokens;
+        private final String version;
+        private final long expires;
+
+        private Entry(Configuration config, boolean hasTokens, String version, long expires)
+        {
+            this.config = config;
+            this.hasTokens = hasTokens;
+            this.version = version;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Set how long the entries are cached. 0 disables the cache for that kind of entry.
+     *
+     * @param seconds         time to live of users with tokens
+     * @param negativeSeconds time to live of users without tokens
+     * @param shared          whether invalidations are shared with the other nodes through the single-use object store
+     */
+    void configure(long seconds, long negativeSeconds, boolean shared)
+    {
+        this.ttlMillis = TimeUnit.SECONDS.toMillis(Math.max(0, seconds));
+        this.negativeTtlMillis = TimeUnit.SECONDS.toMillis(Math.max(0, negativeSeconds));
+        this.shared = shared;
+        entries.clear();
+    }
+
+    /**
+     * @param session  session of the current request
+     * @param realmId  id of the keycloak realm
+     * @param username name of the user
+     * @param config   configuration of the execution, a changed config invalidates the entry
+     * @return true or false if it is known whether the user has tokens, null if privacyIDEA has to be asked
+     */
+    Boolean hasTokens(KeycloakSession session, String realmId, String username, Configuration config)
+    {
+        String key = key(realmId, username);
+        Entry entry = entries.get(key);
+        if (entry == null || entry.config != config || entry.expires <= System.currentTimeMillis())
+        {
+            return null;
+        }
+        if (shared && !Objects.equals(entry.version, version(session, key)))
+        {
+            // Invalidated on another node
+            entries.remove(key, entry);
+            return null;
+        }
+        return entry.hasTokens;
+    }
+
+    /**
+     * Remember whether the user has tokens.
+     *
+     * @param session   session of the current request
+     * @param realmId   id of the keycloak realm
+     * @param username  name of the user
+     * @param config    configuration of the execution
+     * @param hasTokens true if the user has at least one token
+     */
+    void put(KeycloakSession session, String realmId, String username, Configuration config, boolean hasTokens)
+    {
+        long ttl = hasTokens ? ttlMillis : negativeTtlMillis;
+        if (ttl == 0)
+        {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (entries.size() >= TOKEN_CACHE_MAX_SIZE)
+        {
+            entries.values().removeIf(e -> e.expires <= now);
+            if (entries.size() >= TOKEN_CACHE_MAX_SIZE)
+            {
+                entries.clear();
+            }
+        }
+        String key = key(realmId, username);
+        entries.put(key, new Entry(config, hasTokens, shared ? version(session, key) : null, now + ttl));
+    }
+
+    /**
+     * Remove the entry of the user on this node and, if shared invalidation is enabled, on all other nodes, e.g. because
+     * the tokens of the user changed.
+     *
+     * @param session  session of the current request
+     * @param realmId  id of the keycloak realm
+     * @param username name of the user
+     */
+    void invalidate(KeycloakSession session, String realmId, String username)
+    {
+        String key = key(realmId, username);
+        entries.remove(key);
+        if (shared)
+        {
+            // The version only has to live as long as the entries loaded before it
+            long lifespan = TimeUnit.MILLISECONDS.toSeconds(Math.max(ttlMillis, negativeTtlMillis));
+            session.singleUseObjects().put(VERSION_PREFIX + key, Math.max(1, lifespan),
+                                           Map.of(VERSION, SecretGenerator.getInstance().randomString()));
+        }
+    }
+
+    /**
+     * Remove the entry of the user on this node only, e.g. because the user has been removed.
+     *
+     * @param realmId  id of the keycloak realm
+     * @param username name of the user
+     */
+    void invalidate(String realmId, String username)
+    {
+        entries.remove(key(realmId, username));
+    }
+
+    /**
+     * Remove the entries of all users of the realm, e.g. because the realm has been removed.
+     *
+     * @param realmId id of the keycloak realm
+     */
+    void removeRealm(String realmId)
+    {
+        String prefix = realmId + ':';
+        entries.keySet().removeIf(k -> k.startsWith(prefix));
+    }
+
+    /**
+     * @return the current version of the user's token state in the cluster, null if it was never invalidated
+     */
+    private static String version(KeycloakSession session, String key)
+    {
+        Map<String, String> notes = session.singleUseObjects().get(VERSION_PREFIX + key);
+        return notes == null ? null : notes.get(VERSION);
+    }
+
+    private static String key(String realmId, String username)
+    {
+        // Keycloak stores usernames in lower case, privacyIDEA may report them as entered
+        return realmId + ':' + username.toLowerCase(Locale.ROOT);
+    }
+}
@@ -1,5 +1,17 @@
+'use strict';
+
+// Polls privacyIDEA for the confirmation of a push transaction.
+// Only one request is in flight at a time. The delay between requests starts at the polling interval sent by the page
+// and grows exponentially with jitter up to maxDelay. Polling stops at the deadline or when the page sends 'stop'.
 let url;
 let params;
+let baseDelay = 1000;
+let maxDelay = 10000;
+let deadline = 300000;
+let controller;
+let timer;
+let stopped = false;
+
 self.addEventListener('message', function (e)
 {
     let data = e.data;
@@ -9,53 +21,112 @@ self.addEventListener('message', function (e)
             url = data.msg + "/validate/polltransaction";
             break;
         case 'transactionID':
-            params = "transaction_id=" + data.msg;
+            params = "transaction_id=" + encodeURIComponent(data.msg);
+            break;
+        case 'interval':
+        {
+            // Hint from the server in seconds
+            const interval = parseFloat(data.msg);
+            if (interval > 0)
+            {
+                baseDelay = interval * 1000;
+                maxDelay = Math.max(maxDelay, baseDelay);
+            }
             break;
+        }
+        case 'deadline':
+        {
+            const seconds = parseFloat(data.msg);
+            if (seconds > 0)
+            {
+                deadline = seconds * 1000;
+            }
+            break;
+        }
         case 'start':
-            if (url.length > 0 && params.length > 0)
+            if (url && params)
             {
-                setInterval("pollTransactionInBrowser()", 300);
+                const endTime = Date.now() + deadline;
+                schedule(0, baseDelay, endTime);
             }
             break;
+        case 'stop':
+            stop();
+            self.close();
+            break;
     }
 })
 
-function pollTransactionInBrowser()
+function stop()
 {
-    const request = new XMLHttpRequest();
-    request.open("GET", url + "?" + params, false);
-    request.onload = (e) =>
+    stopped = true;
+    clearTimeout(timer);
+    if (controller)
     {
-        try
+        controller.abort();
+    }
+}
+
+function finish(message, status)
+{
+    stop();
+    self.postMessage({'message': message, 'status': status});
+    self.close();
+}
+
+function schedule(delay, nextDelay, endTime)
+{
+    if (stopped)
+    {
+        return;
+    }
+    if (Date.now() + delay > endTime)
+    {
+        finish("Push confirmation was not received in time.", 'error');
+        return;
+    }
+    timer = setTimeout(() => pollTransactionInBrowser(nextDelay, endTime), delay);
+}
+
+function withJitter(delay)
+{
+    // Equal jitter: half of the delay is fixed, the other half random, so that many browsers do not poll in lockstep
+    return delay / 2 + Math.random() * delay / 2;
+}
+
+async function pollTransactionInBrowser(delay, endTime)
+{
+    controller = new AbortController();
+    try
+    {
+        const response = await fetch(url + "?" + params, {
+            method: "GET",
+            cache: "no-store",
+            signal: controller.signal
+        });
+        if (!response.ok)
         {
-            if (request.readyState === 4)
-            {
-                if (request.status === 200)
-                {
-                    const response = JSON.parse(request.response);
-                    if (response['result']['value'] === true)
-                    {
-                        self.postMessage({'message': 'Polling in browser: Push message confirmed!', 'status': 'success'});
-                        self.close();
-                    }
-                }
-                else
-                {
-                    self.postMessage({'message': request.statusText, 'status': 'error'});
-                    self.close();
-                }
-            }
+            finish(response.statusText, 'error');
+            return;
         }
-        catch (e)
+        const result = await response.json();
+        if (result['result']['value'] === true)
         {
-            self.postMessage({'message': e, 'status': 'error'});
-            self.close();
+            finish('Polling in browser: Push message confirmed!', 'success');
+            return;
         }
-    };
-    request.onerror = (e) =>
+    }
+    catch (e)
     {
-        self.postMessage({'message': request.statusText, 'status': 'error'});
-        self.close();
-    };
-    request.send();
-}
\ No newline at end of file
+        if (!stopped)
+        {
+            finish(e.toString(), 'error');
+        }
+        return;
+    }
+    finally
+    {
+        controller = undefined;
+    }
+    schedule(withJitter(delay), Math.min(delay * 2, maxDelay), endTime);
+}
@@ -47,31 +47,23 @@
 
             <div class="${properties.kcFormGroupClass!}">
                 <div id="kc-form-options" class="${properties.kcFormOptionsClass!}">
-                    <#-- These inputs will be returned to privacyIDEAAuthenticator -->
+                    <#-- These inputs will be returned to privacyIDEAAuthenticator, the rest of the form state is kept on the server -->
                     <input id="mode" name="mode" value="${mode}" type="hidden">
-                    <input id="push_available" name="push_available" value="${push_available?c}" type="hidden">
-                    <input id="otp_available" name="otp_available" value="${otp_available?c}" type="hidden">
-                    <input id="pushMessage" name="pushMessage" value="${pushMessage!""}" type="hidden">
-                    <input id="otpMessage" name="otpMessage" value="${otpMessage!""}" type="hidden">
-                    <input id="pushImage" name="pushImage" value="${pushImage!""}" type="hidden">
-                    <input id="otpImage" name="otpImage" value="${otpImage!""}" type="hidden">
-                    <input id="webauthnImage" name="webauthnImage" value="${webauthnImage!""}" type="hidden">
                     <input id="modeChanged" name="modeChanged" value="false" type="hidden">
                     <input id="pollInBrowserFailed" name="pollInBrowserFailed" value="${pollInBrowserFailed?c}" type="hidden">
                     <input id="errorMsg" name="errorMsg" value="" type="hidden">
 
-                    <input id="webauthnsignrequest" name="webauthnsignrequest" value="${webauthnsignrequest!""}"
-                           type="hidden">
+                    <#-- Inputs without a name are only read by the scripts and not sent back -->
+                    <input id="webauthnsignrequest" value="${webauthnsignrequest!""}" type="hidden">
                     <input id="webauthnsignresponse" name="webauthnsignresponse" value="" type="hidden">
                     <input id="origin" name="origin" value="" type="hidden">
 
-                    <input id="u2fsignrequest" name="u2fsignrequest" value="${u2fsignrequest!""}"
-                           type="hidden">
+                    <input id="u2fsignrequest" value="${u2fsignrequest!""}" type="hidden">
                     <input id="u2fsignresponse" name="u2fsignresponse" value="" type="hidden">
 
                     <input class="pf-c-button pf-m-primary pf-m-block btn-lg" name="login" id="kc-login" type="submit"
                            value="Sign in"/>
-                    <input id="uilanguage" name="uilanguage" value="${uilanguage!"en"}" type="hidden">
+                    <input id="uilanguage" value="${uilanguage!"en"}" type="hidden">
 
                     <#-- ALTERNATE LOGIN OPTIONS class="${properties.kcFormButtonsClass!}" -->
                     <div id="alternateToken" style="padding-top: 20px">
@@ -111,11 +103,18 @@
                                                 worker = new Worker("${url.resourcesPath}/pi-pollTransaction.worker.js");
                                                 document.getElementById("kc-otp-login-form").addEventListener('submit', function (e)
                                                 {
-                                                    worker.terminate();
-                                                    worker = undefined;
+                                                    if (worker)
+                                                    {
+                                                        // The worker aborts the request in flight and closes itself.
+                                                        // Terminating it here would drop the message before it is handled.
+                                                        worker.postMessage({'cmd': 'stop'});
+                                                        worker = undefined;
+                                                    }
                                                 })
                                                 worker.postMessage({'cmd': 'url', 'msg': '${piPollInBrowserUrl}'});
                                                 worker.postMessage({'cmd': 'transactionID', 'msg': '${transactionID}'});
+                                                worker.postMessage({'cmd': 'interval', 'msg': '${pollingInterval}'});
+                                                worker.postMessage({'cmd': 'deadline', 'msg': '${pollDeadline!"300"}'});
                                                 worker.postMessage({'cmd': 'start'});
                                                 worker.addEventListener('message', function (e)
                                                 {
@@ -148,16 +147,61 @@
                             </#if>
 
                             <#if mode = "push">
-                            <#--The form will be reloaded if push token is enabled to check if it is confirmed.
+                            <#--The browser long-polls the provider endpoint and submits the form once the push is confirmed.
+                            If that is not possible, the form will be reloaded to check if it is confirmed.
                             The interval can be set in the configuration-->
                                 <script>document.getElementById("kc-login").style.display = "none";</script>
                                 <script>
-                                    window.onload = () =>
+                                    'use strict';
+
+                                    function reloadPushForm()
                                     {
                                         window.setTimeout(() =>
                                         {
                                             document.forms["kc-otp-login-form"].submit()
                                         }, parseInt(${pollingInterval}) * 1000);
+                                    }
+
+                                    function waitForPush(url)
+                                    {
+                                        fetch(url, {credentials: "same-origin", cache: "no-store"})
+                                            .then((response) =>
+                                            {
+                                                if (response.status !== 200)
+                                                {
+                                                    throw new Error("HTTP " + response.status);
+                                                }
+                                                return response.json();
+                                            })
+                                            .then((data) =>
+                                            {
+                                                if (data.status === "confirmed")
+                                                {
+                                                    document.forms["kc-otp-login-form"].submit();
+                                                }
+                                                else
+                                                {
+                                                    waitForPush(url);
+                                                }
+                                            })
+                                            .catch((err) =>
+                                            {
+                                                console.log("Push long-poll failed, reloading instead: " + err);
+                                                reloadPushForm();
+                                            });
+                                    }
+
+                                    window.onload = () =>
+                                    {
+                                        const pushPollUrl = "${pushPollUrl!""}";
+                                        if (pushPollUrl !== "" && window.fetch)
+                                        {
+                                            waitForPush(pushPollUrl);
+                                        }
+                                        else
+                                        {
+                                            reloadPushForm();
+                                        }
                                     };
                                 </script>
                             <#if otp_available>
@@ -341,7 +385,6 @@
                                     document.getElementById("alternateToken").style.display = "none";
                                     document.getElementById("kc-login").style.display = "none";
                                     document.getElementById("otp").style.display = "none";
-                                    document.getElementById("otpMessage").value = "";
                                 </script>
                             </#if>
                         </div>